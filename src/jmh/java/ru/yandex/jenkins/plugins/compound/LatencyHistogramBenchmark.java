@@ -0,0 +1,40 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording into a {@link LatencyHistogram} shared by concurrent provisioning threads
+ *
+ * @author pupssman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LatencyHistogramBenchmark {
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	@Benchmark
+	@Threads(4)
+	public void recordContended() {
+		histogram.record(System.nanoTime() & 0xFFFF);
+	}
+
+	@Benchmark
+	public long percentile() {
+		return histogram.getPercentile(99);
+	}
+}
@@ -0,0 +1,128 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import antlr.ANTLRException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Label matching of {@link CompoundCloud} and name grouping of {@link CompoundSlave} over growing configurations
+ *
+ * @author pupssman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProvisioningBenchmark {
+	@Param({"1", "16", "128"})
+	public int configurations;
+
+	private List<ConfigurationEntry> configuration;
+	private CompoundCloud cloud;
+	private Label lastLabel;
+	private Label missingLabel;
+	private Label expression;
+	private List<CompoundSlave.Entry> entries;
+
+	@Setup
+	public void setUp() throws ANTLRException {
+		configuration = new ArrayList<ConfigurationEntry>();
+		entries = new ArrayList<CompoundSlave.Entry>();
+
+		for (int i = 0; i < configurations; i++) {
+			configuration.add(new ConfigurationEntry("config-" + i, Arrays.asList(
+					new SlaveEntry("ROOT", "root-" + i, "1", ""),
+					new SlaveEntry("db", "db-" + i, "2", ""))));
+
+			entries.add(new CompoundSlave.Entry("root-" + i, "ROOT"));
+			entries.add(new CompoundSlave.Entry("db-" + i + "-a", "db"));
+			entries.add(new CompoundSlave.Entry("db-" + i + "-b", "db"));
+		}
+
+		cloud = newCloud();
+		lastLabel = new LabelAtom("config-" + (configurations - 1));
+		missingLabel = new LabelAtom("missing");
+		expression = Label.parseExpression("config-0 && !small");
+	}
+
+	private CompoundCloud newCloud() {
+		return new CompoundCloud("benchmark", "", "backend", "60", configuration, false, "0");
+	}
+
+	/**
+	 * Cloud with an empty resolution cache, created anew for every call
+	 */
+	@State(Scope.Thread)
+	public static class FreshCloud {
+		private CompoundCloud cloud;
+
+		@Setup(Level.Invocation)
+		public void setUp(ProvisioningBenchmark benchmark) {
+			cloud = benchmark.newCloud();
+		}
+	}
+
+	/**
+	 * Label already resolved, which is what NodeProvisioner hits on every tick
+	 */
+	@Benchmark
+	public boolean canProvisionLast() {
+		return cloud.canProvision(lastLabel);
+	}
+
+	/**
+	 * First resolution of a label, going through all the configurations
+	 */
+	@Benchmark
+	public boolean canProvisionLastUncached(FreshCloud fresh) {
+		return fresh.cloud.canProvision(lastLabel);
+	}
+
+	@Benchmark
+	public boolean canProvisionMissingUncached(FreshCloud fresh) {
+		return fresh.cloud.canProvision(missingLabel);
+	}
+
+	@Benchmark
+	public boolean canProvisionMissing() {
+		return cloud.canProvision(missingLabel);
+	}
+
+	/**
+	 * Configuration choice for a label not seen before, i.e. without the resolution cache
+	 */
+	@Benchmark
+	public String satisfyingLabels() {
+		return CompoundCloud.getSatisfyingLabels(expression, lastLabel);
+	}
+
+	@Benchmark
+	public Map<String, List<String>> makeNames() {
+		return CompoundSlave.makeNames(entries);
+	}
+}
@@ -0,0 +1,61 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reserving and releasing sub-slaves with {@link SubSlaveReservation} while other compounds hold theirs
+ *
+ * @author pupssman
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubSlaveReservationBenchmark {
+	@Param({"10", "1000"})
+	public int reserved;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < reserved; i++) {
+			SubSlaveReservation.reserve("held-" + i, "compound-" + i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (int i = 0; i < reserved; i++) {
+			SubSlaveReservation.release("held-" + i);
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean reserveAndRelease() {
+		String name = Thread.currentThread().getName();
+
+		SubSlaveReservation.reserve(name, "benchmark");
+		return SubSlaveReservation.release(name);
+	}
+
+	@Benchmark
+	public String lookup() {
+		return SubSlaveReservation.getReservedBy("held-0");
+	}
+}
@@ -0,0 +1,130 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Computer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped log file stream that does not block writers on disk I/O.
+ *
+ * Written chunks are queued and drained to the file by a separate thread,
+ * so a remote process writing its output through the channel is not throttled by master's disk.
+ * The queue holds at most {@link #MAX_CHUNKS} chunks of at most {@link #MAX_CHUNK} bytes, a writer outrunning the disk for longer than that waits.
+ *
+ * @author pupssman
+ */
+public class AsyncLogOutputStream extends OutputStream {
+	private static final byte[] EOF = new byte[0];
+
+	private static final int MAX_CHUNK = 64 * 1024;
+	private static final int MAX_CHUNKS = 256;
+
+	private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(MAX_CHUNKS);
+	private final Future<?> drainer;
+	private volatile IOException failure;
+	private boolean closed = false;
+
+	public AsyncLogOutputStream(File file) throws IOException {
+		file.getParentFile().mkdirs();
+		final OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+
+		drainer = Computer.threadPoolForRemoting.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					try {
+						while (true) {
+							byte[] chunk = queue.take();
+							if (chunk == EOF) {
+								break;
+							}
+							out.write(chunk);
+						}
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					failure = e;
+				} catch (InterruptedException e) {
+					failure = new InterruptedIOException("Log writer interrupted");
+				} finally {
+					// nobody is going to take anything anymore
+					queue.clear();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for room in the queue, as long as the writer thread is alive
+	 */
+	private void enqueue(byte[] chunk) throws IOException {
+		try {
+			while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+				if (drainer.isDone()) {
+					throw failure != null ? failure : new IOException("Log writer is gone");
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for log writer");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		for (int done = 0; done < len; done += MAX_CHUNK) {
+			byte[] chunk = new byte[Math.min(MAX_CHUNK, len - done)];
+			System.arraycopy(b, off + done, chunk, 0, chunk.length);
+			enqueue(chunk);
+		}
+	}
+
+	/**
+	 * Waits for all the queued data to get to the disk
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (!drainer.isDone()) {
+			enqueue(EOF);
+		}
+
+		try {
+			drainer.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while flushing log");
+		} catch (ExecutionException e) {
+			throw new IOException("Log writer failed: " + e.getCause().getMessage(), e.getCause());
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
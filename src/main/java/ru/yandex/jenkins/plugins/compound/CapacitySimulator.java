@@ -0,0 +1,423 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Label;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import antlr.ANTLRException;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Dry run of a {@link CompoundCloud} configuration against a trace of build arrivals, in virtual time.
+ *
+ * Configuration choice and retry backoff are taken from the cloud itself, so the result follows what production would do;
+ * backend cloud is modelled with latencies, failure rate and per-label quotas of concurrent sub-slaves.
+ * Nothing is provisioned and the cloud state is not touched, so it's safe to run against a live cloud from the script console:
+ *
+ * <pre>
+ * import ru.yandex.jenkins.plugins.compound.CapacitySimulator
+ * def trace = CapacitySimulator.readTrace(new FileReader("/tmp/arrivals.csv"))
+ * println CapacitySimulator.simulate(Jenkins.instance.getCloud("compound"), trace, new CapacitySimulator.Backend(120000, 30000, 0.05, [:]))
+ * </pre>
+ *
+ * Every build gets a compound of its own, as {@link CompoundTerminator} makes them single-use.
+ *
+ * @author pupssman
+ */
+public class CapacitySimulator {
+	private CapacitySimulator() {
+		// utility
+	}
+
+	/**
+	 * A single build in the trace
+	 *
+	 * @author pupssman
+	 */
+	public static class Arrival {
+		private final long time;
+		private final String label;
+		private final long duration;
+
+		/**
+		 * @param time since start of the trace, milliseconds
+		 * @param label expression the build is assigned to
+		 * @param duration of the build itself, milliseconds
+		 */
+		public Arrival(long time, String label, long duration) {
+			this.time = time;
+			this.label = label;
+			this.duration = duration;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+	}
+
+	/**
+	 * Model of the backend cloud
+	 *
+	 * @author pupssman
+	 */
+	public static class Backend {
+		private final long provisionLatency;
+		private final long launchLatency;
+		private final double failureRate;
+		private final Map<String, Integer> quotas;
+
+		/**
+		 * @param provisionLatency of a sub-slave, milliseconds
+		 * @param launchLatency of a sub-slave, milliseconds
+		 * @param failureRate of provisioning a compound, from 0 to 1
+		 * @param quotas max number of concurrent sub-slaves by backend label, unlimited for the labels not mentioned
+		 */
+		public Backend(long provisionLatency, long launchLatency, double failureRate, Map<String, Integer> quotas) {
+			this.provisionLatency = provisionLatency;
+			this.launchLatency = launchLatency;
+			this.failureRate = failureRate;
+			this.quotas = quotas;
+		}
+	}
+
+	/**
+	 * Outcome of a simulation
+	 *
+	 * @author pupssman
+	 */
+	public static class Report {
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+		private int builds;
+		private int unservable;
+		private int failedProvisionings;
+		private double nodeHours;
+		private int peakSubSlaves;
+		private long makespan;
+
+		public LatencyHistogram getQueueWait() {
+			return queueWait;
+		}
+
+		public int getBuilds() {
+			return builds;
+		}
+
+		/**
+		 * @return number of builds no configuration fits
+		 */
+		public int getUnservable() {
+			return unservable;
+		}
+
+		public int getFailedProvisionings() {
+			return failedProvisionings;
+		}
+
+		/**
+		 * @return sub-slave hours, from provisioning start to termination
+		 */
+		public double getNodeHours() {
+			return nodeHours;
+		}
+
+		public int getPeakSubSlaves() {
+			return peakSubSlaves;
+		}
+
+		@Override
+		public String toString() {
+			return "Builds: " + builds + ", unservable: " + unservable + ", failed provisionings: " + failedProvisionings + "\n"
+					+ "Queue wait: " + queueWait + "\n"
+					+ String.format("Node-hours: %.1f, peak concurrent sub-slaves: %d\n", nodeHours, peakSubSlaves)
+					+ "Simulated time: " + TimeUnit.MILLISECONDS.toMinutes(makespan) + " min";
+		}
+	}
+
+	private static final class Build {
+		private final Arrival arrival;
+		private final ConfigurationEntry entry;
+		private long provisionStarted;
+
+		private Build(Arrival arrival, ConfigurationEntry entry) {
+			this.arrival = arrival;
+			this.entry = entry;
+		}
+	}
+
+	private enum Kind {
+		ARRIVE, PROVISION, READY, FAILED, DONE
+	}
+
+	private static final class Event implements Comparable<Event> {
+		private final long time;
+		private final long sequence;
+		private final Kind kind;
+		private final Build build;
+
+		private Event(long time, long sequence, Kind kind, Build build) {
+			this.time = time;
+			this.sequence = sequence;
+			this.kind = kind;
+			this.build = build;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * State of a single simulation run
+	 */
+	private static final class Simulation {
+		private final CompoundCloud cloud;
+		private final Backend backend;
+		private final Report report = new Report();
+		private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+		private final Random random = new Random(0);
+		private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+		private final Map<ConfigurationEntry, Long> lastProblems = new HashMap<ConfigurationEntry, Long>();
+		private final Map<String, Label> labels = new HashMap<String, Label>();
+		private final LinkedList<Build> waitingForQuota = new LinkedList<Build>();
+		private long sequence;
+		private int subSlaves;
+
+		private Simulation(CompoundCloud cloud, Backend backend) {
+			this.cloud = cloud;
+			this.backend = backend;
+		}
+
+		private void schedule(long time, Kind kind, Build build) {
+			events.add(new Event(time, sequence++, kind, build));
+		}
+
+		private Label parse(String expression) {
+			Label label = labels.get(expression);
+
+			if (label == null) {
+				try {
+					label = Label.parseExpression(expression);
+				} catch (ANTLRException e) {
+					throw new IllegalArgumentException("Bad label expression in trace: " + expression, e);
+				}
+				labels.put(expression, label);
+			}
+
+			return label;
+		}
+
+		private Report run(List<Arrival> trace) {
+			for (Arrival arrival: trace) {
+				// the very same choice CompoundCloud.provision makes
+				ConfigurationEntry entry = cloud.getConfigurationFor(parse(arrival.label));
+
+				report.builds++;
+
+				if (entry == null) {
+					report.unservable++;
+				} else {
+					schedule(arrival.time, Kind.ARRIVE, new Build(arrival, entry));
+				}
+			}
+
+			while (!events.isEmpty()) {
+				Event event = events.poll();
+				report.makespan = event.time;
+
+				switch (event.kind) {
+				case ARRIVE:
+				case PROVISION:
+					provision(event.time, event.build);
+					break;
+				case FAILED:
+					report.failedProvisionings++;
+					lastProblems.put(event.build.entry, event.time);
+					release(event.time, event.build);
+					// NodeProvisioner keeps asking while the build is queued
+					provision(event.time, event.build);
+					break;
+				case READY:
+					report.queueWait.record(event.time - event.build.arrival.time);
+					schedule(event.time + event.build.arrival.duration, Kind.DONE, event.build);
+					break;
+				case DONE:
+					release(event.time, event.build);
+					break;
+				}
+			}
+
+			return report;
+		}
+
+		private void provision(long now, Build build) {
+			Long problems = lastProblems.get(build.entry);
+			long backoff = problems == null ? 0 : cloud.getBackoffRemaining(problems, now);
+
+			if (backoff > 0) {
+				schedule(now + backoff, Kind.PROVISION, build);
+				return;
+			}
+
+			if (!fitsQuota(build.entry)) {
+				waitingForQuota.add(build);
+				return;
+			}
+
+			for (SlaveEntry slaveEntry: build.entry.getEntries()) {
+				inUse.put(slaveEntry.getLabelAtom().getName(), used(slaveEntry.getLabelAtom().getName()) + slaveEntry.getNumber());
+				subSlaves += slaveEntry.getNumber();
+			}
+			report.peakSubSlaves = Math.max(report.peakSubSlaves, subSlaves);
+			build.provisionStarted = now;
+
+			// all the sub-slaves are provisioned and launched in parallel
+			if (random.nextDouble() < backend.failureRate) {
+				schedule(now + backend.provisionLatency, Kind.FAILED, build);
+			} else {
+				schedule(now + backend.provisionLatency + backend.launchLatency, Kind.READY, build);
+			}
+		}
+
+		private boolean fitsQuota(ConfigurationEntry entry) {
+			Map<String, Integer> needed = new HashMap<String, Integer>();
+
+			for (SlaveEntry slaveEntry: entry.getEntries()) {
+				String label = slaveEntry.getLabelAtom().getName();
+				needed.put(label, (needed.containsKey(label) ? needed.get(label) : 0) + slaveEntry.getNumber());
+			}
+
+			for (Map.Entry<String, Integer> need: needed.entrySet()) {
+				Integer quota = backend.quotas.get(need.getKey());
+
+				if (quota != null && used(need.getKey()) + need.getValue() > quota) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private int used(String label) {
+			Integer used = inUse.get(label);
+			return used == null ? 0 : used;
+		}
+
+		private void release(long now, Build build) {
+			for (SlaveEntry slaveEntry: build.entry.getEntries()) {
+				inUse.put(slaveEntry.getLabelAtom().getName(), used(slaveEntry.getLabelAtom().getName()) - slaveEntry.getNumber());
+				subSlaves -= slaveEntry.getNumber();
+				report.nodeHours += (double) slaveEntry.getNumber() * (now - build.provisionStarted) / TimeUnit.HOURS.toMillis(1);
+			}
+
+			List<Build> waiting = new ArrayList<Build>(waitingForQuota);
+			waitingForQuota.clear();
+
+			for (Build next: waiting) {
+				provision(now, next);
+			}
+		}
+	}
+
+	/**
+	 * Replays the trace against the cloud configuration
+	 *
+	 * @param cloud whose configuration to use
+	 * @param trace of build arrivals
+	 * @param backend model
+	 * @return report
+	 */
+	public static Report simulate(CompoundCloud cloud, List<Arrival> trace, Backend backend) {
+		return new Simulation(cloud, backend).run(trace);
+	}
+
+	/**
+	 * Reads a trace in CSV: seconds since start, label expression, build duration in seconds. Lines starting with # are skipped.
+	 *
+	 * @param reader
+	 * @return arrivals sorted by time
+	 * @throws IOException
+	 */
+	public static List<Arrival> readTrace(Reader reader) throws IOException {
+		List<Arrival> result = new ArrayList<Arrival>();
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+
+		while ((line = lines.readLine()) != null) {
+			line = line.trim();
+
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+
+			String[] fields = line.split(",");
+
+			if (fields.length != 3) {
+				throw new IOException("Expected 'time,label,duration' but got: " + line);
+			}
+
+			result.add(new Arrival(TimeUnit.SECONDS.toMillis(Long.parseLong(fields[0].trim())), fields[1].trim(), TimeUnit.SECONDS.toMillis(Long.parseLong(fields[2].trim()))));
+		}
+
+		sort(result);
+
+		return result;
+	}
+
+	/**
+	 * Generates Poisson arrivals
+	 *
+	 * @param labels label expressions to pick uniformly
+	 * @param perHour mean number of builds per hour
+	 * @param hours length of the trace
+	 * @param meanDuration mean build duration, milliseconds, exponentially distributed
+	 * @param seed
+	 * @return arrivals sorted by time
+	 */
+	public static List<Arrival> syntheticTrace(List<String> labels, double perHour, int hours, long meanDuration, long seed) {
+		List<Arrival> result = new ArrayList<Arrival>();
+		Random random = new Random(seed);
+		double meanGap = TimeUnit.HOURS.toMillis(1) / perHour;
+		long end = TimeUnit.HOURS.toMillis(hours);
+
+		for (double time = -meanGap * Math.log(1 - random.nextDouble()); time < end; time += -meanGap * Math.log(1 - random.nextDouble())) {
+			long duration = (long) (-meanDuration * Math.log(1 - random.nextDouble()));
+			result.add(new Arrival((long) time, labels.get(random.nextInt(labels.size())), duration));
+		}
+
+		return result;
+	}
+
+	private static void sort(List<Arrival> trace) {
+		Collections.sort(trace, new Comparator<Arrival>() {
+			@Override
+			public int compare(Arrival a, Arrival b) {
+				return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+			}
+		});
+	}
+}
@@ -0,0 +1,265 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Label;
+import hudson.model.Project;
+import hudson.remoting.Channel;
+import hudson.remoting.DelegatingCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Builder;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Pre-warms remote classloading on sub-slave channels, so that the first {@link CompoundBuilder} step does not pay for it.
+ *
+ * Jars of the builders wrapped by the {@link CompoundBuilder}s of the jobs that can run on the compound are preloaded in bulk,
+ * then a single call per builder classloader loads the classes the steps send to the sub-slave: nested and anonymous serializable classes of the builders.
+ * Each call is a {@link DelegatingCallable}, so the classes are loaded by the same remote classloader the step is going to use.
+ *
+ * @author pupssman
+ */
+public class ChannelPrewarm {
+	private static final Logger logger = Logger.getLogger(ChannelPrewarm.class.getCanonicalName());
+
+	/**
+	 * Classes of the core used by every {@link CompoundBuilder} step on a sub-slave
+	 */
+	private static final String[] CORE_CLASSES = {
+		"hudson.FilePath",
+		"hudson.EnvVars",
+		"hudson.Launcher",
+		"hudson.Launcher$LocalLauncher",
+		"hudson.Launcher$RemoteLauncher",
+		"hudson.Proc",
+		"hudson.Proc$LocalProc",
+		"hudson.util.ProcessTree",
+		"hudson.util.StreamCopyThread",
+	};
+
+	/**
+	 * Max number of anonymous classes of a builder to look for
+	 */
+	private static final int MAX_ANONYMOUS = 32;
+
+	private final Map<ClassLoader, List<Class<?>>> jars;
+	/**
+	 * Names of the classes to load by the loaders to load them through
+	 */
+	private final Map<ClassLoader, List<String>> classNames;
+
+	private ChannelPrewarm(Map<ClassLoader, List<Class<?>>> jars, Map<ClassLoader, List<String>> classNames) {
+		this.jars = jars;
+		this.classNames = classNames;
+	}
+
+	/**
+	 * @return if pre-warm is enabled in global configuration
+	 */
+	public static boolean isEnabled() {
+		CompoundSlave.DescriptorImpl descriptor = (CompoundSlave.DescriptorImpl) Jenkins.getInstance().getDescriptor(CompoundSlave.class);
+
+		return descriptor != null && descriptor.isPrewarm();
+	}
+
+	/**
+	 * Collects the builders to pre-warm for
+	 *
+	 * @param compoundSlave
+	 * @return pre-warm for the jobs the given compound may run
+	 */
+	@SuppressWarnings("rawtypes")
+	public static ChannelPrewarm forCompound(CompoundSlave compoundSlave) {
+		Set<Class<?>> builders = new LinkedHashSet<Class<?>>();
+
+		for (Project project: Jenkins.getInstance().getAllItems(Project.class)) {
+			Label label = project.getAssignedLabel();
+
+			if (label != null && !label.contains(compoundSlave)) {
+				continue;
+			}
+
+			for (Object builder: project.getBuilders()) {
+				if (builder instanceof CompoundBuilder) {
+					Builder actualBuilder = ((CompoundBuilder) builder).getActualBuilder();
+
+					if (actualBuilder != null) {
+						builders.add(actualBuilder.getClass());
+					}
+				}
+			}
+		}
+
+		Map<ClassLoader, List<Class<?>>> jars = new LinkedHashMap<ClassLoader, List<Class<?>>>();
+		Map<ClassLoader, List<String>> classNames = new LinkedHashMap<ClassLoader, List<String>>();
+		Map<ClassLoader, ClassLoader> bridges = new LinkedHashMap<ClassLoader, ClassLoader>();
+
+		// core is seen by this plugin, no bridge needed
+		classNames.put(WarmUp.class.getClassLoader(), new ArrayList<String>(Arrays.asList(CORE_CLASSES)));
+
+		for (Class<?> builder: builders) {
+			ClassLoader classLoader = builder.getClassLoader();
+			List<Class<?>> classes = jars.get(classLoader);
+
+			if (classes == null) {
+				classes = new ArrayList<Class<?>>();
+				jars.put(classLoader, classes);
+				bridges.put(classLoader, new Bridge(classLoader));
+				classNames.put(bridges.get(classLoader), new ArrayList<String>());
+			}
+
+			classes.add(builder);
+			classNames.get(bridges.get(classLoader)).addAll(getRemoteClassNames(builder));
+		}
+
+		return new ChannelPrewarm(jars, classNames);
+	}
+
+	/**
+	 * @param builder
+	 * @return names of the nested and anonymous classes of the builder that may be sent to a sub-slave
+	 */
+	private static List<String> getRemoteClassNames(Class<?> builder) {
+		List<String> result = new ArrayList<String>();
+		List<Class<?>> pending = new ArrayList<Class<?>>(Arrays.asList(builder.getDeclaredClasses()));
+
+		for (int i = 1; i <= MAX_ANONYMOUS; i++) {
+			try {
+				pending.add(Class.forName(builder.getName() + "$" + i, false, builder.getClassLoader()));
+			} catch (ClassNotFoundException e) {
+				break;
+			} catch (LinkageError e) {
+				break;
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			Class<?> candidate = pending.remove(pending.size() - 1);
+
+			if (Serializable.class.isAssignableFrom(candidate) && !candidate.isInterface()) {
+				result.add(candidate.getName());
+			}
+
+			pending.addAll(Arrays.asList(candidate.getDeclaredClasses()));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Pre-warms a single channel, failures are only logged as the step will load everything it needs anyway
+	 *
+	 * @param channel of a sub-slave
+	 * @param nodeName of the sub-slave
+	 * @throws InterruptedException
+	 */
+	public void warm(VirtualChannel channel, String nodeName) throws InterruptedException {
+		if (channel == null) {
+			return;
+		}
+
+		try {
+			if (channel instanceof Channel) {
+				for (Map.Entry<ClassLoader, List<Class<?>>> jar: jars.entrySet()) {
+					((Channel) channel).preloadJar(jar.getKey(), jar.getValue().toArray(new Class<?>[jar.getValue().size()]));
+				}
+			}
+
+			int loaded = 0;
+			int total = 0;
+
+			for (Map.Entry<ClassLoader, List<String>> classes: classNames.entrySet()) {
+				if (!classes.getValue().isEmpty()) {
+					loaded += channel.call(new WarmUp(classes.getKey(), classes.getValue().toArray(new String[classes.getValue().size()])));
+					total += classes.getValue().size();
+				}
+			}
+
+			logger.fine("Pre-warmed " + nodeName + ": " + loaded + " of " + total + " classes");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to pre-warm " + nodeName, e);
+		}
+	}
+
+	/**
+	 * @return names of the classes to be loaded on the sub-slaves
+	 */
+	public Collection<String> getClassNames() {
+		List<String> result = new ArrayList<String>();
+
+		for (List<String> classes: classNames.values()) {
+			result.addAll(classes);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Loader of the classes of a builder from another plugin, which can also find {@link WarmUp} to send it along
+	 */
+	private static final class Bridge extends ClassLoader {
+		private Bridge(ClassLoader builderLoader) {
+			super(builderLoader);
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			if (name.equals(WarmUp.class.getName())) {
+				return WarmUp.class;
+			}
+			throw new ClassNotFoundException(name);
+		}
+	}
+
+	/**
+	 * Loads the given classes on the remote side through the remote counterpart of the given loader, skipping the ones that can't be found there
+	 */
+	private static final class WarmUp implements DelegatingCallable<Integer, RuntimeException> {
+		private static final long serialVersionUID = 1L;
+
+		private final transient ClassLoader classLoader;
+		private final String[] classNames;
+
+		private WarmUp(ClassLoader classLoader, String[] classNames) {
+			this.classLoader = classLoader;
+			this.classNames = classNames;
+		}
+
+		@Override
+		public ClassLoader getClassLoader() {
+			return classLoader;
+		}
+
+		@Override
+		public Integer call() {
+			// the request runs with the remote counterpart of getClassLoader() as the context loader
+			ClassLoader remoteLoader = Thread.currentThread().getContextClassLoader();
+			int loaded = 0;
+
+			for (String name: classNames) {
+				try {
+					Class.forName(name, false, remoteLoader);
+					loaded++;
+				} catch (ClassNotFoundException e) {
+					// not available on the sub-slave, the step will fail on its own if it needs it
+				} catch (LinkageError e) {
+					// will surface in the step itself, if ever
+				}
+			}
+
+			return loaded;
+		}
+	}
+}
@@ -5,21 +5,22 @@ import hudson.Extension;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
 import hudson.model.TaskListener;
-import hudson.model.TopLevelItem;
-import hudson.model.WorkspaceListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.Slave;
-import hudson.slaves.WorkspaceList;
-import hudson.slaves.WorkspaceList.Lease;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,18 +36,72 @@ import org.kohsuke.stapler.DataBoundConstructor;
  *
  */
 public class CompoundBuilder extends Builder {
+	/**
+	 * How the sub-slaves of the role are picked for a step
+	 *
+	 * @author pupssman
+	 */
+	public static enum SelectionPolicy {
+		/**
+		 * The sub-slave with the given number, or all of them if number is 0
+		 */
+		EXACT("Exact number, or everyone"),
+		/**
+		 * The given number of least loaded sub-slaves, see {@link SubSlaveLoad}
+		 */
+		LEAST_LOADED("Least loaded"),
+		/**
+		 * The given number of sub-slaves, starting where the previous round-robin step of the role stopped
+		 */
+		ROUND_ROBIN("Round-robin across steps"),
+		/**
+		 * The given number of sub-slaves with no steps running, topped up with the least loaded ones if there are not enough
+		 */
+		FIRST_N_FREE("First free");
+
+		private final String displayName;
+
+		private SelectionPolicy(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
 	/**
 	 * The role of sub-slave to run upon
 	 */
 	private final String role;
 	private final Builder actualBuilder;
 	private final int number;
+	/**
+	 * Whether to write each sub-slave output to its own log instead of the build console
+	 */
+	private final boolean separateLogs;
+	/**
+	 * How to pick the sub-slaves, {@link SelectionPolicy#EXACT} if null
+	 */
+	private final SelectionPolicy policy;
+	/**
+	 * Name of the {@link WorkspaceTemplate} to clone empty workspaces from, none if null
+	 */
+	private final String template;
+	/**
+	 * Whether to capture the workspace as the {@link #template} after a successful run
+	 */
+	private final boolean captureTemplate;
 
 	@DataBoundConstructor
-	public CompoundBuilder(String role, String number, Builder actualBuilder) {
+	public CompoundBuilder(String role, String number, Builder actualBuilder, boolean separateLogs, String policy, String template, boolean captureTemplate) {
 		this.role = role;
 		this.number = Integer.parseInt(number);
 		this.actualBuilder = actualBuilder;
+		this.separateLogs = separateLogs;
+		this.policy = Util.fixEmpty(policy) == null ? SelectionPolicy.EXACT : SelectionPolicy.valueOf(policy);
+		this.template = Util.fixEmptyAndTrim(template);
+		this.captureTemplate = captureTemplate;
 	}
 
 	/**
@@ -60,24 +115,26 @@ public class CompoundBuilder extends Builder {
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private String prepareEnvironment(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, Slave slave) throws IOException, InterruptedException {
-		WorkspaceList workspaceList = slave.getComputer().getWorkspaceList();
-		Lease workspaceLease = workspaceList.allocate(slave.getWorkspaceFor((TopLevelItem) (build.getProject())), build);
-
-		String workspace = workspaceLease.path.getRemote();
-		log(listener, "Provisioning workspace " + workspace + " on " + slave.getDisplayName());
+	static String prepareEnvironment(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, Slave slave) throws IOException, InterruptedException {
+		return prepareEnvironment(build, listener, SubSlavePreparation.start(build, slave, null));
+	}
 
-		workspaceLease.path.mkdirs();
-		slave.getFileSystemProvisioner().prepareWorkspace(build, workspaceLease.path,listener);
+	/**
+	 * Completes WS initialization started in advance with {@link SubSlavePreparation#start(AbstractBuild, Slave, String)}
+	 * @return workspace location
+	 */
+	static String prepareEnvironment(AbstractBuild<?, ?> build, BuildListener listener, SubSlavePreparation preparation) throws IOException, InterruptedException {
+		String workspace = preparation.getWorkspace().getRemote();
+		log(listener, "Provisioning workspace " + workspace + " on " + preparation.getSlave().getDisplayName());
 
-		for (WorkspaceListener wl : WorkspaceListener.all()) {
-			wl.beforeUse(build, workspaceLease.path, listener);
+		if (preparation.finish(build, listener).isCloned()) {
+			log(listener, "Cloned workspace " + workspace + " from template");
 		}
 
 		return workspace;
 	}
 
-	private void log(BuildListener listener, String message) {
+	private static void log(BuildListener listener, String message) {
 		listener.getLogger().println("[CompoundBuilder] " + message);
 	}
 
@@ -95,9 +152,11 @@ public class CompoundBuilder extends Builder {
 
 				CompoundSlave compoundSlave = (CompoundSlave) runningNode;
 
-				log(listener, "It has slaves with roles:" + FunctionalPrimitives.join(compoundSlave.getAllSlaves().keySet(), ", "));
+				CompoundTopology topology = compoundSlave.getTopology();
 
-				List<Slave> slaves = compoundSlave.getSlaves(role);
+				log(listener, "It has slaves with roles:" + FunctionalPrimitives.join(topology.getRoles(), ", "));
+
+				List<Slave> slaves = topology.get(role);
 
 				Launcher actualLauncher;
 				AbstractBuild<?, ?> actualBuild;
@@ -105,28 +164,87 @@ public class CompoundBuilder extends Builder {
 				boolean result = true;
 
 				if (!slaves.isEmpty() && !role.equals("ROOT")) {
-					int slaveNumber = 0;
-
-					for (Slave slave: slaves) {
-						slaveNumber ++;
-
-						// we run for slave with given number or any slave if number is 0
-						if (slaveNumber != number && number != 0) {
-							log(listener, "This slave " + slave.getDisplayName() + " is number "+ slaveNumber + ", but we seek " + number);
-							continue;
+					slaves = select(compoundSlave, slaves, listener);
+
+					// sub-slaves that are up already get their workspaces prepared all at once
+					Map<Slave, SubSlavePreparation> preparations = new HashMap<Slave, SubSlavePreparation>();
+					try {
+						for (Slave slave: slaves) {
+							if (slave.getChannel() != null && !(compoundSlave.getLauncher() instanceof CompoundLauncher && ((CompoundLauncher) compoundSlave.getLauncher()).isLaunching(slave))) {
+								preparations.put(slave, SubSlavePreparation.start(build, slave, getTemplateLocation(slave)));
+							}
 						}
 
-						log(listener, "Got a separate slave " + slave.getDisplayName() + " for role " + role + " and number " + number);
-						log(listener, "Preparing workspace on slave " + slave.getDisplayName());
-						String workspace = prepareEnvironment(build, launcher, listener, slave);
-
-						log(listener, "Running actual sub-builder.");
-						actualLauncher = new Launcher.RemoteLauncher(listener, slave.getChannel(), slave.getComputer().isUnix());
-						Map<String, String> envOverrides = new HashMap<String, String>();
-						envOverrides.put("WORKSPACE", workspace);
-						actualBuild = new PatchedBuild(build, workspace, slave, envOverrides);
-
-						result &= actualBuilder.perform(actualBuild, actualLauncher, listener);
+						for (Slave slave: slaves) {
+							log(listener, "Got a separate slave " + slave.getDisplayName() + " for role " + role + " and number " + number + " (" + getPolicy().getDisplayName() + ")");
+
+							if (compoundSlave.getLauncher() instanceof CompoundLauncher && !((CompoundLauncher) compoundSlave.getLauncher()).waitFor(slave)) {
+								log(listener, "Slave " + slave.getDisplayName() + " failed to come online, skipping it.");
+								SubSlavePreparation preparation = preparations.remove(slave);
+								if (preparation != null) {
+									preparation.abandon();
+								}
+								result = false;
+								continue;
+							}
+
+							BuildListener slaveListener = listener;
+							AsyncLogOutputStream slaveLog = null;
+
+							if (separateLogs) {
+								CompoundLogAction logAction = build.getAction(CompoundLogAction.class);
+								if (logAction == null) {
+									logAction = new CompoundLogAction();
+									build.addAction(logAction);
+								}
+
+								File logFile = logAction.newLog(build, slave.getNodeName());
+								slaveLog = new AsyncLogOutputStream(logFile);
+								slaveListener = new StreamBuildListener(slaveLog);
+								log(listener, "Output of " + slave.getDisplayName() + " goes to " + CompoundLogAction.LOG_DIR + "/" + logFile.getName());
+							}
+
+							boolean slaveResult = false;
+							SubSlaveLoad.begin(slave.getNodeName());
+
+							try {
+								log(slaveListener, "Preparing workspace on slave " + slave.getDisplayName());
+								SubSlavePreparation preparation = preparations.remove(slave);
+								String workspace = prepareEnvironment(build, slaveListener, preparation != null ? preparation : SubSlavePreparation.start(build, slave, getTemplateLocation(slave)));
+
+								log(slaveListener, "Running actual sub-builder.");
+								actualLauncher = new Launcher.RemoteLauncher(slaveListener, slave.getChannel(), slave.getComputer().isUnix());
+								Map<String, String> envOverrides = new HashMap<String, String>();
+								envOverrides.put("WORKSPACE", workspace);
+								actualBuild = new PatchedBuild(build, workspace, slave, envOverrides);
+
+								slaveResult = actualBuilder.perform(actualBuild, actualLauncher, slaveListener);
+
+								if (slaveResult && captureTemplate && template != null) {
+									log(slaveListener, "Capturing workspace as template " + template);
+									try {
+										slave.createPath(workspace).act(new WorkspaceTemplate.Capture(getTemplateLocation(slave)));
+									} catch (IOException e) {
+										// the step itself went fine, next builds just won't get a fresh template
+										e.printStackTrace(slaveListener.error("Failed to capture template " + template));
+									}
+								}
+							} finally {
+								SubSlaveLoad.end(slave.getNodeName());
+
+								if (slaveLog != null) {
+									slaveLog.close();
+									log(listener, "[" + slave.getDisplayName() + "] finished " + (slaveResult ? "successfully" : "with failure"));
+								}
+							}
+
+							result &= slaveResult;
+						}
+					} finally {
+						// preparations not used, e.g. because a step threw
+						for (SubSlavePreparation preparation: preparations.values()) {
+							preparation.abandon();
+						}
 					}
 				} else {
 					log(listener, "No separate slave, running on a master.");
@@ -148,6 +266,79 @@ public class CompoundBuilder extends Builder {
 		}
 	}
 
+	/**
+	 * Picks the sub-slaves to run at according to the {@link #policy}
+	 *
+	 * @param compoundSlave
+	 * @param slaves of the role, not empty
+	 * @param listener
+	 * @return sub-slaves to run at
+	 */
+	private List<Slave> select(CompoundSlave compoundSlave, List<Slave> slaves, BuildListener listener) {
+		int count = Math.min(Math.max(number, 1), slaves.size());
+
+		switch (getPolicy()) {
+		case LEAST_LOADED:
+			return SubSlaveLoad.sortByLoad(slaves).subList(0, count);
+		case ROUND_ROBIN:
+			List<Slave> result = new ArrayList<Slave>(count);
+			int start = compoundSlave.nextCursor(role);
+
+			for (int i = 0; i < count; i++) {
+				result.add(slaves.get((start + i) % slaves.size()));
+			}
+
+			return result;
+		case FIRST_N_FREE:
+			List<Slave> free = new ArrayList<Slave>(count);
+			List<Slave> busy = new ArrayList<Slave>();
+
+			for (Slave slave: slaves) {
+				Computer computer = slave.toComputer();
+
+				if (free.size() < count && SubSlaveLoad.getInFlight(slave.getNodeName()) == 0 && (computer == null || computer.countBusy() == 0)) {
+					free.add(slave);
+				} else {
+					busy.add(slave);
+				}
+			}
+
+			if (free.size() < count) {
+				log(listener, "Only " + free.size() + " free slaves with role " + role + ", adding the least loaded ones");
+				free.addAll(SubSlaveLoad.sortByLoad(busy).subList(0, count - free.size()));
+			}
+
+			return free;
+		case EXACT:
+		default:
+			// we run for slave with given number or any slave if number is 0
+			if (number == 0) {
+				return slaves;
+			}
+
+			Slave numbered = compoundSlave.getTopology().get(role, number - 1);
+
+			if (numbered == null) {
+				if (number <= compoundSlave.getTopology().getPositions(role).size()) {
+					log(listener, "Slave number " + number + " with role " + role + " can't be found in Jenkins, missing are: " + compoundSlave.getTopology().getMissing());
+				} else {
+					log(listener, "There are only " + slaves.size() + " slaves with role " + role + ", but we seek number " + number);
+				}
+				return Collections.emptyList();
+			}
+
+			return Collections.singletonList(numbered);
+		}
+	}
+
+	/**
+	 * @param slave
+	 * @return location of the {@link #template} on the given sub-slave, null if there is no template
+	 */
+	private String getTemplateLocation(Slave slave) {
+		return template == null ? null : WorkspaceTemplate.getLocation(slave, template, role);
+	}
+
 	public static class PatchedBuild<X extends AbstractProject<X,Y>, Y extends AbstractBuild<X, Y>> extends AbstractBuild<X, Y> {
 		private final Map<String, String> envOverrides;
 		private final AbstractBuild<X, Y> actualBuild;
@@ -215,6 +406,16 @@ public class CompoundBuilder extends Builder {
 			return model;
 		}
 
+		public ListBoxModel doFillPolicyItems() {
+			ListBoxModel model = new ListBoxModel();
+
+			for (SelectionPolicy policy: SelectionPolicy.values()) {
+				model.add(policy.getDisplayName(), policy.name());
+			}
+
+			return model;
+		}
+
 		public ListBoxModel doFillNumberItems() {
 			ListBoxModel model = new ListBoxModel();
 
@@ -243,4 +444,20 @@ public class CompoundBuilder extends Builder {
 	public Integer getNumber() {
 		return number;
 	}
+
+	public boolean isSeparateLogs() {
+		return separateLogs;
+	}
+
+	public SelectionPolicy getPolicy() {
+		return policy == null ? SelectionPolicy.EXACT : policy;
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	public boolean isCaptureTemplate() {
+		return captureTemplate;
+	}
 }
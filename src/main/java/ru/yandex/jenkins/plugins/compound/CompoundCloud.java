@@ -1,11 +1,13 @@
 package ru.yandex.jenkins.plugins.compound;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Slave;
 import hudson.model.labels.LabelAtom;
 import hudson.slaves.AbstractCloudSlave;
 import hudson.slaves.Cloud;
@@ -15,30 +17,40 @@ import hudson.slaves.AbstractCloudImpl;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import jedi.functional.Filter;
+import antlr.ANTLRException;
+
 import jedi.functional.FunctionalPrimitives;
 import jedi.functional.Functor;
 import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
 import ru.yandex.jenkins.plugins.compound.CompoundSlave.DescriptorImpl;
 import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+import ru.yandex.jenkins.plugins.compound.ProvisioningTimings.Phase;
 
 
 /**
@@ -50,7 +62,19 @@ public class CompoundCloud extends AbstractCloudImpl {
 	private final String backend;
 	private final int retryTimeout;
 	private final List<ConfigurationEntry> configuration;
+	private final boolean replaceDeadSlaves;
+	/**
+	 * Max number of compounds provisioned ahead of demand alive at once, see {@link CompoundDemandPredictor}
+	 */
+	private final int predictiveBudget;
 	private final AtomicInteger nodesProvisioned = new AtomicInteger(0);
+	private transient ProvisioningJournal journal;
+	private transient volatile ConcurrentMap<Label, Resolution> resolutions;
+
+	/**
+	 * Max number of labels to look for a label set satisfying both requested label and configuration
+	 */
+	private static final int MAX_ATOMS = 16;
 
 	private static final Logger logger = Logger.getLogger(CompoundCloud.class.getCanonicalName());
 
@@ -60,12 +84,22 @@ public class CompoundCloud extends AbstractCloudImpl {
 	 * @author pupssman
 	 */
 	public static class ConfigurationEntry {
-		private final LabelAtom labelAtom;
+		private String labelExpression;
+		/**
+		 * Stored by the older versions, converted to {@link #labelExpression} on load
+		 */
+		@Deprecated
+		private LabelAtom labelAtom;
 		private final List<SlaveEntry> entries;
 
+		private transient volatile Label label;
+
 		// when happened last deployment problems with this config
 		long lastProblems = 0;
 
+		private transient volatile ProvisioningTimings timings;
+		private transient volatile ProvisioningCounters counters;
+
 		/**
 		 * Describes a single sub-node kind within a {@link CompoundSlave}
 		 *
@@ -75,18 +109,21 @@ public class CompoundCloud extends AbstractCloudImpl {
 			private final String role;
 			private final LabelAtom labelAtom;
 			private final int number;
+			private final int quorum;
 
 
 			/**
 			 * @param role within {@link CompoundSlave}
 			 * @param labelAtom will be used to deploy sub-slave in {@link CompoundCloud#backendCloud}
 			 * @param number of the copies
+			 * @param quorum number of the copies that should be online for compound to start, all if empty
 			 */
 			@DataBoundConstructor
-			public SlaveEntry(String role, String labelAtom, String number) {
+			public SlaveEntry(String role, String labelAtom, String number, String quorum) {
 				this.role = role;
 				this.labelAtom = new LabelAtom(labelAtom);
 				this.number = Integer.parseInt(number);
+				this.quorum = Util.fixEmptyAndTrim(quorum) == null ? 0 : Integer.parseInt(quorum.trim());
 			}
 
 			public String getRole() {
@@ -100,60 +137,153 @@ public class CompoundCloud extends AbstractCloudImpl {
 			public int getNumber() {
 				return number;
 			}
+
+			public int getQuorum() {
+				return quorum > 0 ? Math.min(quorum, number) : number;
+			}
 		}
 
+		/**
+		 * @param labelExpression the labels this configuration is provisioned for, i.e. <code>perf &amp;&amp; linux &amp;&amp; !small</code>
+		 * @param entries
+		 */
 		@DataBoundConstructor
-		public ConfigurationEntry(String labelAtom, List<SlaveEntry> entries) {
+		public ConfigurationEntry(String labelExpression, List<SlaveEntry> entries) {
 			this.entries = entries;
-			this.labelAtom = new LabelAtom(labelAtom);
+			this.labelExpression = labelExpression.trim();
 		}
 
-		public LabelAtom getLabelAtom() {
-			return labelAtom;
+		protected Object readResolve() {
+			if (labelExpression == null && labelAtom != null) {
+				labelExpression = labelAtom.getName();
+				labelAtom = null;
+			}
+			return this;
+		}
+
+		public String getLabelExpression() {
+			return labelExpression;
+		}
+
+		/**
+		 * @return label expression, parsed once
+		 */
+		public Label getLabel() {
+			if (label == null) {
+				try {
+					label = Label.parseExpression(getLabelExpression());
+				} catch (ANTLRException e) {
+					logger.warning("Bad label expression " + getLabelExpression() + ", treating it as a single label: " + e.getMessage());
+					label = new LabelAtom(getLabelExpression());
+				}
+			}
+			return label;
 		}
 
 		public List<SlaveEntry> getEntries() {
 			return entries;
 		}
+
+		/**
+		 * @return durations of provisioning phases for this configuration since Jenkins start
+		 */
+		public ProvisioningTimings getTimings() {
+			if (timings == null) {
+				synchronized (this) {
+					if (timings == null) {
+						timings = new ProvisioningTimings();
+					}
+				}
+			}
+			return timings;
+		}
+
+		/**
+		 * @return provisioning outcomes for this configuration since Jenkins start
+		 */
+		public ProvisioningCounters getCounters() {
+			if (counters == null) {
+				synchronized (this) {
+					if (counters == null) {
+						counters = new ProvisioningCounters();
+					}
+				}
+			}
+			return counters;
+		}
+	}
+
+	/**
+	 * Configuration chosen for a requested label
+	 *
+	 * @author pupssman
+	 */
+	private static final class Resolution {
+		private static final Resolution NONE = new Resolution(null, null);
+
+		private final ConfigurationEntry entry;
+		/**
+		 * Labels of the compound to provision, satisfying both configuration and requested label
+		 */
+		private final String labels;
+		/**
+		 * Number of the {@link #labels}, the fewer of them, the tighter the configuration fits the request
+		 */
+		private final int size;
+
+		private Resolution(ConfigurationEntry entry, String labels) {
+			this.entry = entry;
+			this.labels = labels;
+			this.size = labels == null || labels.length() == 0 ? 0 : labels.split(" ").length;
+		}
 	}
 
 	@DataBoundConstructor
-	public CompoundCloud(String name, String maxInstances, String backendCloud, String retryTimeout, List<ConfigurationEntry> configuration) {
+	public CompoundCloud(String name, String maxInstances, String backendCloud, String retryTimeout, List<ConfigurationEntry> configuration, boolean replaceDeadSlaves, String predictiveBudget) {
 		super(name, maxInstances);
 		this.backend = backendCloud;
 		this.configuration = configuration;
 		this.retryTimeout = Integer.parseInt(retryTimeout);
+		this.replaceDeadSlaves = replaceDeadSlaves;
+		this.predictiveBudget = Util.fixEmptyAndTrim(predictiveBudget) == null ? 0 : Integer.parseInt(predictiveBudget.trim());
 	}
 
 	@Override
 	public Collection<PlannedNode> provision(final Label label, int excessWorkload) {
 		List<PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
 
-		final ConfigurationEntry entry = FunctionalPrimitives.firstOrDefault(configuration, new Filter<ConfigurationEntry>() {
-			@Override
-			public Boolean execute(ConfigurationEntry value) {
-				return label.matches(Arrays.asList(value.getLabelAtom()));
-			}}, null);
+		final Resolution resolution = resolve(label);
 
-		if (entry == null) {
+		if (resolution == null) {
 			logger.warning(MessageFormat.format("Failed to deploy label {0} because no configuration found.", label));
 			return result;
 		}
 
+		final ConfigurationEntry entry = resolution.entry;
+
 		if (configHasRecentErrors(entry)) {
 			logger.warning(MessageFormat.format("Requested to deploy label {0}, but corresponding config had problems recently. Will wait until timeout of {1} seconds to retry.", label.toString(), retryTimeout));
 			return result;
 		}
 
 		final int nodeNumber = nodesProvisioned.incrementAndGet();
+		final ProvisioningTrace trace = new ProvisioningTrace();
+		final ProvisioningTrace.Span provisionSpan = trace.begin("provision " + label, "provision");
+		entry.getCounters().started();
 
 		Future<Node> future = Computer.threadPoolForRemoting.submit(new Callable<Node>() {
 			@Override
 			public Node call() throws Exception {
 				try {
-					return doCreateSlave(entry, nodeNumber);
+					Node node = doCreateSlave(entry, resolution.labels, nodeNumber, trace);
+					entry.getCounters().succeeded();
+					provisionSpan.end();
+					return node;
 				} catch (Exception e) {
+					provisionSpan.fail(e);
+					entry.getCounters().failed();
 					configProvisioningFailed(entry);
+					getJournal().abort(getCompoundName(nodeNumber));
 					throw e;
 				}
 			}
@@ -165,21 +295,126 @@ public class CompoundCloud extends AbstractCloudImpl {
 		return result;
 	}
 
-	protected CompoundSlave doCreateSlave(ConfigurationEntry entry, int nodeNumber) throws CompoundingException {
+	private static String getCompoundName(int nodeNumber) {
+		return "Dynamic-compound-" + nodeNumber;
+	}
+
+	/**
+	 * Chooses the configuration that fits the given label most tightly, caching the choice.
+	 *
+	 * The tightest is the one giving the compound the fewest labels, the first one configured wins a tie.
+	 *
+	 * @param label
+	 * @return chosen configuration or null if there is none
+	 */
+	private Resolution resolve(Label label) {
+		if (label == null) {
+			return null;
+		}
+
+		ConcurrentMap<Label, Resolution> cache = resolutions;
+		if (cache == null) {
+			// a lost race creates an extra cache, which is harmless
+			cache = resolutions = new ConcurrentHashMap<Label, Resolution>();
+		}
+
+		Resolution resolution = cache.get(label);
+
+		if (resolution == null) {
+			resolution = Resolution.NONE;
+
+			for (ConfigurationEntry entry: configuration) {
+				String labels = getSatisfyingLabels(entry.getLabel(), label);
+
+				if (labels != null) {
+					Resolution candidate = new Resolution(entry, labels);
+
+					if (resolution.entry == null || candidate.size < resolution.size) {
+						resolution = candidate;
+					}
+				}
+			}
+
+			cache.putIfAbsent(label, resolution);
+		}
+
+		return resolution == Resolution.NONE ? null : resolution;
+	}
+
+	/**
+	 * Looks for a set of the configured labels satisfying both expressions.
+	 *
+	 * Only the labels the configuration refers to are tried, so the request has to be satisfied by them alone.
+	 *
+	 * @param configured
+	 * @param requested may be null
+	 * @return space-separated labels or null if there is no such set
+	 */
+	static String getSatisfyingLabels(Label configured, Label requested) {
+		List<LabelAtom> atoms = new ArrayList<LabelAtom>(new LinkedHashSet<LabelAtom>(configured.listAtoms()));
+
+		if (atoms.size() > MAX_ATOMS) {
+			logger.warning("Too many labels to match " + configured + " against " + requested);
+			return null;
+		}
+
+		long limit = 1L << atoms.size();
+
+		// larger sets first, so the compound gets all the labels it can
+		for (int size = atoms.size(); size >= 0; size--) {
+			for (long mask = (1L << size) - 1; mask < limit; ) {
+				List<LabelAtom> candidate = new ArrayList<LabelAtom>();
+				List<String> names = new ArrayList<String>();
+
+				for (int i = 0; i < atoms.size(); i++) {
+					if ((mask & (1L << i)) != 0) {
+						candidate.add(atoms.get(i));
+						names.add(atoms.get(i).getName());
+					}
+				}
+
+				if (configured.matches(candidate) && (requested == null || requested.matches(candidate))) {
+					return FunctionalPrimitives.join(names, " ");
+				}
+
+				if (mask == 0) {
+					break;
+				}
+
+				// next mask with the same number of bits set (Gosper's hack)
+				long lowest = mask & -mask;
+				long ripple = mask + lowest;
+				mask = (((ripple ^ mask) >>> 2) / lowest) | ripple;
+			}
+		}
+
+		return null;
+	}
+
+	protected CompoundSlave doCreateSlave(ConfigurationEntry entry, String labels, int nodeNumber, ProvisioningTrace trace) throws CompoundingException {
 		List<Entry> slaveEntries = new ArrayList<CompoundSlave.Entry>();
+		List<Node> nodes = new ArrayList<Node>();
+		String compoundName = getCompoundName(nodeNumber);
+		ProvisioningTrace.Span createSpan = trace.begin("doCreateSlave", "provision");
+
+		getJournal().intent(compoundName, entry.getLabelExpression());
+
 		try {
-			List<Future<Collection<Entry>>> newSlaves = new ArrayList<Future<Collection<Entry>>>();
+			List<Future<List<Node>>> newSlaves = new ArrayList<Future<List<Node>>>();
 
 			for (final SlaveEntry slaveEntry: entry.getEntries()) {
-				newSlaves.add(doProvisionSubSlave(slaveEntry));
+				newSlaves.add(doProvisionSubSlave(entry, slaveEntry, compoundName, trace));
 			}
 
 			// cleanup flag. We can't do cleanup in catch because we need all futures to happen before cleanup
 			boolean cleanup = false;
 
-			for(Future<Collection<Entry>> future: newSlaves) {
+			for(int i = 0; i < newSlaves.size(); i++) {
 				try {
-					slaveEntries.addAll(future.get());
+					for (Node node: newSlaves.get(i).get()) {
+						nodes.add(node);
+						slaveEntries.add(new Entry(node.getNodeName(), entry.getEntries().get(i).getRole()));
+					}
 				} catch (InterruptedException e) {
 					logger.log(Level.SEVERE, "InterruptedException: " + e.getMessage(), e);
 					cleanup = true;
@@ -191,51 +426,110 @@ public class CompoundCloud extends AbstractCloudImpl {
 
 			if (cleanup) {
 				logger.severe("Deployment failed, see log above. Cleaning up..");
-				cleanup(slaveEntries);
+				cleanup(nodes);
+				createSpan.end();
 				throw new CompoundingException("Deployment sub-slaves failed, see log");
 			}
 
-			return new CompoundSlave("Dynamic-compound-" + nodeNumber, "Dynamically-created compound node for label " + entry.getLabelAtom(), entry.getLabelAtom().toString(), slaveEntries);
+			long started = System.currentTimeMillis();
+			ProvisioningTrace.Span span = trace.begin("addNodes", "provision");
+			addNodes(nodes);
+			span.end();
+			entry.getTimings().record(Phase.ADD_NODE, started);
+
+			started = System.currentTimeMillis();
+			span = trace.begin("assemble", "provision");
+			CompoundSlave compoundSlave = assemble(entry, compoundName, labels, slaveEntries);
+			compoundSlave.setTrace(trace);
+			span.end();
+			entry.getTimings().record(Phase.COMPOUND_CONSTRUCTION, started);
+			createSpan.end();
+
+			logger.fine("Provisioning timings for " + entry.getLabelExpression() + ":\n" + entry.getTimings());
+
+			return compoundSlave;
 		} catch (FormException e) {
 			logger.log(Level.SEVERE, "Form exception: " + e.getMessage(), e);
-			cleanup(slaveEntries);
+			createSpan.fail(e);
+			cleanup(nodes);
 			throw new CompoundingException("Configuration error: " + e.getMessage(), e);
 		} catch (IOException e) {
-			cleanup(slaveEntries);
+			createSpan.fail(e);
+			cleanup(nodes);
 			logger.log(Level.SEVERE, "IO exception: " + e.getMessage(), e);
 			throw new CompoundingException("IO Exception: " + e.getMessage(), e);
 		}
 	}
 
-	private Future<Collection<Entry>> doProvisionSubSlave(final SlaveEntry slaveEntry) {
-		return Computer.threadPoolForRemoting.submit(new Callable<Collection<Entry>> () {
+	/**
+	 * Creates a compound from the sub-slaves already added to Jenkins
+	 */
+	private CompoundSlave assemble(ConfigurationEntry entry, String compoundName, String labels, List<Entry> slaveEntries) throws FormException, IOException {
+		CompoundSlave compoundSlave = new CompoundSlave(compoundName, "Dynamically-created compound node for label " + entry.getLabelExpression(), labels, slaveEntries);
+		compoundSlave.setProvisionedBy(this, entry);
+
+		Map<String, Integer> quorums = new HashMap<String, Integer>();
+		for (SlaveEntry slaveEntry: entry.getEntries()) {
+			Integer quorum = quorums.get(slaveEntry.getRole());
+			quorums.put(slaveEntry.getRole(), (quorum == null ? 0 : quorum) + slaveEntry.getQuorum());
+		}
+		for (Map.Entry<String, Integer> quorum: quorums.entrySet()) {
+			compoundSlave.setQuorum(quorum.getKey(), quorum.getValue());
+		}
+
+		return compoundSlave;
+	}
+
+	/**
+	 * Provisions sub-slaves for the given entry in the backend cloud.
+	 *
+	 * Nodes are not added to Jenkins here, see {@link #addNodes(List)}
+	 */
+	private Future<List<Node>> doProvisionSubSlave(final ConfigurationEntry entry, final SlaveEntry slaveEntry, final String compoundName, final ProvisioningTrace trace) {
+		return Computer.threadPoolForRemoting.submit(new Callable<List<Node>> () {
 			@Override
-			public Collection<Entry> call() throws Exception {
-				final Jenkins jenkins = Jenkins.getInstance();
+			public List<Node> call() throws Exception {
 				List<PlannedNode> plannedNodes = new ArrayList<NodeProvisioner.PlannedNode>();
+				final String track = "provision " + slaveEntry.getRole() + " (" + slaveEntry.getLabelAtom() + ")";
+				ProvisioningTrace.Span subSlaveSpan = trace.begin("doProvisionSubSlave", track);
 
+				long started = System.currentTimeMillis();
+				ProvisioningTrace.Span span = trace.begin("backend provision", track);
+				// each planned node is traced from the moment its future is created, on a track of its own
+				final Map<PlannedNode, ProvisioningTrace.Span> nodeSpans = new HashMap<PlannedNode, ProvisioningTrace.Span>();
 				for (int i = 0; i < slaveEntry.getNumber();i ++) {
-					plannedNodes.addAll(getBackendCloud().provision(slaveEntry.getLabelAtom(), 1));
+					for (PlannedNode plannedNode: getBackendCloud().provision(slaveEntry.getLabelAtom(), 1)) {
+						nodeSpans.put(plannedNode, trace.begin("PlannedNode " + plannedNode.displayName, track + " " + plannedNode.displayName));
+						plannedNodes.add(plannedNode);
+					}
 				}
+				span.end();
+				entry.getTimings().record(Phase.BACKEND_PROVISION, started);
 
-				List<Entry> result = FunctionalPrimitives.map(plannedNodes, new Functor<PlannedNode, Entry>() {
+				started = System.currentTimeMillis();
+				List<Node> result = FunctionalPrimitives.map(plannedNodes, new Functor<PlannedNode, Node>() {
 					@Override
-					public Entry execute(PlannedNode value) {
+					public Node execute(PlannedNode value) {
+						// planned nodes are resolved one by one, but the backend cloud provisions them in parallel
+						ProvisioningTrace.Span nodeSpan = nodeSpans.get(value);
 						try {
-							jenkins.addNode(value.future.get());
-							return new Entry(value.future.get().getNodeName(), slaveEntry.getRole());
+							Node node = value.future.get();
+							getJournal().node(compoundName, slaveEntry.getRole(), node);
+							nodeSpan.end();
+							return node;
 						} catch (InterruptedException e) {
 							logger.log(Level.SEVERE, "Interrupted", e);
+							nodeSpan.fail(e);
 							return null;
 						} catch (ExecutionException e) {
 							logger.log(Level.SEVERE, "Provisioning failed", e.getCause());
-							return null;
-						} catch (IOException e) {
-							logger.log(Level.SEVERE, "Failed to add Node to jenkins: " + e.getMessage(), e.getCause());
+							nodeSpan.fail(e.getCause());
 							return null;
 						}
 					}
 				});
+				entry.getTimings().record(Phase.FUTURE_RESOLUTION, started);
+				subSlaveSpan.end();
 
 				if (result.contains(null)) {
 					logger.warning("Provisioning failed, cleaning up");
@@ -253,46 +547,248 @@ public class CompoundCloud extends AbstractCloudImpl {
 	}
 
 	/**
-	 * Cleans up all the created stuff in these entries.
+	 * Provisions a single sub-slave to replace a lost one in the given compound
+	 *
+	 * @param compoundSlave provisioned by this cloud
+	 * @param role of the lost sub-slave
+	 * @return new sub-slave, already added to Jenkins and reserved by the compound
+	 * @throws CompoundingException
+	 */
+	public Slave provisionReplacement(CompoundSlave compoundSlave, String role) throws CompoundingException {
+		ConfigurationEntry entry = getConfigurationFor(compoundSlave);
+
+		if (entry == null) {
+			throw new CompoundingException("No configuration found for " + compoundSlave.getNodeName());
+		}
+
+		for (SlaveEntry slaveEntry: entry.getEntries()) {
+			if (!slaveEntry.getRole().equals(role)) {
+				continue;
+			}
+
+			Collection<PlannedNode> plannedNodes = getBackendCloud().provision(slaveEntry.getLabelAtom(), 1);
+
+			if (plannedNodes.isEmpty()) {
+				throw new CompoundingException("Backend cloud provisioned nothing for " + slaveEntry.getLabelAtom());
+			}
+
+			try {
+				Node node = plannedNodes.iterator().next().future.get();
+
+				if (!(node instanceof Slave)) {
+					throw new CompoundingException("Backend cloud provisioned " + node.getNodeName() + " which is not a slave");
+				}
+
+				// reserved before it appears in Jenkins, so that no other job takes it
+				CompoundSlave.enslave((Slave) node, compoundSlave);
+				Jenkins.getInstance().addNode(node);
+				CompoundSlave.enslave((Slave) node, compoundSlave);
+
+				return (Slave) node;
+			} catch (InterruptedException e) {
+				throw new CompoundingException("Interrupted", e);
+			} catch (ExecutionException e) {
+				throw new CompoundingException("Provisioning failed: " + e.getCause().getMessage(), e.getCause());
+			} catch (IOException e) {
+				throw new CompoundingException("Failed to add Node to jenkins: " + e.getMessage(), e);
+			}
+		}
+
+		throw new CompoundingException("No sub-slaves with role " + role + " in configuration " + entry.getLabelExpression());
+	}
+
+	/**
+	 * @param label
+	 * @return the configuration that would be provisioned for the given label or null if there is none
+	 */
+	public ConfigurationEntry getConfigurationFor(Label label) {
+		Resolution resolution = resolve(label);
+
+		return resolution == null ? null : resolution.entry;
+	}
+
+	/**
+	 * @return configuration the given compound was provisioned with or null if there is no such anymore
+	 */
+	public ConfigurationEntry getConfigurationFor(CompoundSlave compoundSlave) {
+		for (ConfigurationEntry entry: configuration) {
+			if (entry.getLabelExpression().equals(compoundSlave.getConfigurationLabel())) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return journal of provisioning by this cloud
+	 */
+	public synchronized ProvisioningJournal getJournal() {
+		if (journal == null) {
+			journal = ProvisioningJournal.of(new File(new File(Jenkins.getInstance().getRootDir(), "compound-cloud"), name + ".journal"));
+		}
+		return journal;
+	}
+
+	/**
+	 * Replays provisioning journal after restart.
+	 *
+	 * Compounds that got all of their sub-slaves provisioned are assembled and added to Jenkins,
+	 * sub-slaves of the others are cleaned up.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void recoverProvisioning() throws IOException, InterruptedException {
+		Jenkins jenkins = Jenkins.getInstance();
+		final List<Node> orphans = new ArrayList<Node>();
+
+		for (ProvisioningJournal.Unfinished unfinished: getJournal().replay()) {
+			String compoundName = unfinished.getCompoundName();
+
+			try {
+				nodesProvisioned.set(Math.max(nodesProvisioned.get(), Integer.parseInt(compoundName.substring(compoundName.lastIndexOf('-') + 1))));
+			} catch (NumberFormatException e) {
+				// not ours, never mind
+			}
+
+			if (jenkins.getNode(compoundName) != null) {
+				continue;
+			}
+
+			ConfigurationEntry entry = null;
+			for (ConfigurationEntry candidate: configuration) {
+				if (candidate.getLabelExpression().equals(unfinished.getConfigurationLabel())) {
+					entry = candidate;
+				}
+			}
+
+			List<Node> registered = new ArrayList<Node>();
+			List<Node> unregistered = new ArrayList<Node>();
+			List<Entry> slaveEntries = new ArrayList<Entry>();
+
+			for (Map.Entry<String, List<Node>> roleNodes: unfinished.getNodes().entrySet()) {
+				for (Node node: roleNodes.getValue()) {
+					Node existing = jenkins.getNode(node.getNodeName());
+					if (existing != null) {
+						registered.add(existing);
+					} else {
+						unregistered.add(node);
+					}
+					slaveEntries.add(new Entry(node.getNodeName(), roleNodes.getKey()));
+				}
+			}
+
+			if (entry != null && isComplete(entry, unfinished)) {
+				logger.info("Finishing provisioning of " + compoundName + " interrupted by restart");
+				try {
+					addNodes(unregistered);
+					String labels = getSatisfyingLabels(entry.getLabel(), null);
+					jenkins.addNode(assemble(entry, compoundName, labels == null ? "" : labels, slaveEntries));
+					continue;
+				} catch (FormException e) {
+					logger.log(Level.WARNING, "Failed to assemble " + compoundName + ", cleaning up", e);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to assemble " + compoundName + ", cleaning up", e);
+				}
+			} else {
+				logger.warning("Provisioning of " + compoundName + " was interrupted by restart, cleaning up " + slaveEntries.size() + " sub-slaves");
+			}
+
+			orphans.addAll(registered);
+			orphans.addAll(unregistered);
+		}
+
+		List<Future<?>> cleanups = new ArrayList<Future<?>>();
+
+		for (final Node orphan: orphans) {
+			cleanups.add(Computer.threadPoolForRemoting.submit(new Runnable() {
+				@Override
+				public void run() {
+					cleanup(Arrays.asList(orphan));
+				}
+			}));
+		}
+
+		for (Future<?> cleanup: cleanups) {
+			try {
+				cleanup.get();
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "Cleanup failed", e.getCause());
+			}
+		}
+
+		getJournal().truncate();
+	}
+
+	private static boolean isComplete(ConfigurationEntry entry, ProvisioningJournal.Unfinished unfinished) {
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+
+		for (SlaveEntry slaveEntry: entry.getEntries()) {
+			Integer number = expected.get(slaveEntry.getRole());
+			expected.put(slaveEntry.getRole(), (number == null ? 0 : number) + slaveEntry.getNumber());
+		}
+
+		for (Map.Entry<String, Integer> role: expected.entrySet()) {
+			List<Node> nodes = unfinished.getNodes().get(role.getKey());
+			if (nodes == null || nodes.size() != role.getValue()) {
+				return false;
+			}
+		}
+
+		return expected.keySet().containsAll(unfinished.getNodes().keySet());
+	}
+
+	/**
+	 * Adds all the given nodes to Jenkins at once, so that node list is saved and labels are rebuilt only once
+	 *
+	 * @param nodes
+	 * @throws IOException
+	 */
+	private static void addNodes(List<? extends Node> nodes) throws IOException {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		// Jenkins#addNode synchronizes on Jenkins as well, so we won't lose concurrently added nodes
+		synchronized (jenkins) {
+			List<Node> allNodes = new ArrayList<Node>(jenkins.getNodes());
+			allNodes.addAll(nodes);
+			jenkins.setNodes(allNodes);
+		}
+	}
+
+	/**
+	 * Cleans up all these nodes.
 	 *
 	 * Terminates {@link AbstractCloudSlave}s and removes all the others
 	 * (in case {@link CompoundCloud#backendCloud} gives us regular slaves instead of {@link AbstractCloudSlave})
-	 * @param entries
+	 * @param nodes
 	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	private void cleanup(Collection<Entry> entries) {
+	private void cleanup(Collection<Node> nodes) {
 		Jenkins jenkins = Jenkins.getInstance();
-		for (Entry entry: entries) {
-			if (entry != null) {
-				Node node = jenkins.getNode(entry.getName());
-				if (node != null) {
-					try {
-						if (node instanceof AbstractCloudSlave) {
-							logger.warning("Terminating CloudSlave " + node.getDisplayName());
-							((AbstractCloudSlave) node).terminate();
-						} else {
-							logger.warning("Removing node " + node.getDisplayName());
-							jenkins.removeNode(node);
-						}
-					} catch (IOException e) {
-						logger.log(Level.WARNING, "Cleanup failed for " + node.getDisplayName(), e);
-					} catch (InterruptedException e) {
-						logger.log(Level.WARNING, "Cleanup failed for " + node.getDisplayName(), e);
+		for (Node node: nodes) {
+			if (node != null) {
+				try {
+					if (node instanceof AbstractCloudSlave) {
+						logger.warning("Terminating CloudSlave " + node.getDisplayName());
+						((AbstractCloudSlave) node).terminate();
+					} else {
+						logger.warning("Removing node " + node.getDisplayName());
+						jenkins.removeNode(node);
 					}
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Cleanup failed for " + node.getDisplayName(), e);
+				} catch (InterruptedException e) {
+					logger.log(Level.WARNING, "Cleanup failed for " + node.getDisplayName(), e);
 				}
 			}
 		}
 	}
 
+
 	@Override
 	public boolean canProvision(Label label) {
-		for (ConfigurationEntry entry: configuration) {
-			if (label.matches(Arrays.asList(entry.getLabelAtom()))) {
-				return true;
-			}
-		}
-		return false;
+		return resolve(label) != null;
 	}
 
 	private void configProvisioningFailed(ConfigurationEntry configurationEntry) {
@@ -300,7 +796,31 @@ public class CompoundCloud extends AbstractCloudImpl {
 	}
 
 	private boolean configHasRecentErrors(ConfigurationEntry configurationEntry) {
-		return (System.currentTimeMillis() - configurationEntry.lastProblems) < retryTimeout * 1000;
+		return getBackoffRemaining(configurationEntry) > 0;
+	}
+
+	/**
+	 * @return milliseconds left until the given configuration may be provisioned again after a failure, 0 if it may be right now
+	 */
+	public long getBackoffRemaining(ConfigurationEntry configurationEntry) {
+		return getBackoffRemaining(configurationEntry.lastProblems, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param lastProblems when the configuration failed to provision last time
+	 * @param now
+	 * @return milliseconds left until a configuration may be provisioned again, 0 if it may be right now
+	 */
+	long getBackoffRemaining(long lastProblems, long now) {
+		return Math.max(0, lastProblems + retryTimeout * 1000L - now);
+	}
+
+	/**
+	 * Serves JSON with provisioning counters and timings of this cloud at /cloud/&lt;name&gt;/metrics
+	 */
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		checkPermission(Jenkins.READ);
+		CompoundMetrics.write(CompoundMetrics.forCloud(this), rsp);
 	}
 
 	@Extension
@@ -360,4 +880,12 @@ public class CompoundCloud extends AbstractCloudImpl {
 		return retryTimeout;
 	}
 
+	public boolean isReplaceDeadSlaves() {
+		return replaceDeadSlaves;
+	}
+
+	public int getPredictiveBudget() {
+		return predictiveBudget;
+	}
+
 }
@@ -0,0 +1,86 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Action;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Computer of a {@link CompoundSlave}, keeps the runtime state of the compound
+ *
+ * @author pupssman
+ */
+public class CompoundComputer extends AbstractCloudComputer<CompoundSlave> {
+	/**
+	 * Names of the sub-slaves found dead by {@link CompoundHealthMonitor}
+	 */
+	private volatile List<String> deadSubSlaves = Collections.emptyList();
+
+	/**
+	 * Marks the compound offline because some of its sub-slaves are lost
+	 *
+	 * @author pupssman
+	 */
+	public static class SubSlavesLost extends OfflineCause {
+		private final List<String> deadSubSlaves;
+
+		public SubSlavesLost(List<String> deadSubSlaves) {
+			this.deadSubSlaves = deadSubSlaves;
+		}
+
+		@Override
+		public String toString() {
+			return "Compound lost sub-slaves: " + deadSubSlaves;
+		}
+	}
+
+	public CompoundComputer(CompoundSlave slave) {
+		super(slave);
+	}
+
+	public List<String> getDeadSubSlaves() {
+		return deadSubSlaves;
+	}
+
+	void setDeadSubSlaves(List<String> deadSubSlaves) {
+		this.deadSubSlaves = Collections.unmodifiableList(deadSubSlaves);
+	}
+
+	/**
+	 * @return if some of the sub-slaves are dead, but the compound is still usable
+	 */
+	public boolean isDegraded() {
+		return !deadSubSlaves.isEmpty() && !(getOfflineCause() instanceof SubSlavesLost);
+	}
+
+	@Override
+	public List<Action> getActions() {
+		List<Action> result = new ArrayList<Action>(super.getActions());
+		result.add(new ProvisioningTraceAction(this));
+		return result;
+	}
+
+	/**
+	 * Serves JSON with the state of the compound and its sub-slaves at /computer/&lt;name&gt;/metrics
+	 */
+	public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		checkPermission(Jenkins.READ);
+		CompoundSlave compoundSlave = getNode();
+
+		if (compoundSlave == null) {
+			rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		CompoundMetrics.write(CompoundMetrics.forCompound(compoundSlave), rsp);
+	}
+}
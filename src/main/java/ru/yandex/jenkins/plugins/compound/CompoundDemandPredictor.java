@@ -0,0 +1,498 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Provisions compounds ahead of demand for the {@link CompoundCloud}s with {@link CompoundCloud#getPredictiveBudget()} set.
+ *
+ * Learns hourly arrival rate of builds per label for every hour of the week and watches upstream builds
+ * of the projects running on compounds. Arrivals are counted as builds start, as there is no queue listener in this version of Jenkins.
+ * When more builds are expected within the provisioning lead time than there are idle compounds,
+ * speculative compounds are provisioned, no more than the budget at once, counting the ones still being provisioned.
+ * Speculative compound that got a build is a hit, one that stayed idle for the whole TTL is terminated as a miss.
+ *
+ * @author pupssman
+ */
+@Extension
+public class CompoundDemandPredictor extends AsyncPeriodicWork {
+	private static final long INTERVAL = Long.getLong(CompoundDemandPredictor.class.getName() + ".interval", 60000);
+	/**
+	 * Default time it takes to get a compound online, used until provisioning timings are known
+	 */
+	private static final long DEFAULT_LEAD_TIME = Long.getLong(CompoundDemandPredictor.class.getName() + ".leadTime", TimeUnit.MINUTES.toMillis(5));
+	/**
+	 * How long a speculative compound may stay idle before it is terminated
+	 */
+	private static final long SPECULATIVE_TTL = Long.getLong(CompoundDemandPredictor.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(30));
+	/**
+	 * Weight of the latest hour in the arrival rate
+	 */
+	private static final double ALPHA = 0.2;
+	private static final int HOURS_PER_WEEK = 24 * 7;
+
+	private static final Logger logger = Logger.getLogger(CompoundDemandPredictor.class.getCanonicalName());
+
+	/**
+	 * Arrival models by cloud name and label
+	 */
+	private static final ConcurrentMap<String, ConcurrentMap<Label, ArrivalModel>> models = new ConcurrentHashMap<String, ConcurrentMap<Label, ArrivalModel>>();
+	/**
+	 * Outcomes of speculation by cloud name
+	 */
+	private static final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+	/**
+	 * Builds expected to be queued when their upstream builds finish
+	 */
+	private static final List<ExpectedArrival> expected = new CopyOnWriteArrayList<ExpectedArrival>();
+	/**
+	 * Builds started since the last run, by label
+	 */
+	private static final ConcurrentMap<Label, AtomicInteger> arrivals = new ConcurrentHashMap<Label, AtomicInteger>();
+	/**
+	 * Speculative compounds being provisioned and not added to Jenkins yet, by cloud name
+	 */
+	private static final ConcurrentMap<String, AtomicInteger> planned = new ConcurrentHashMap<String, AtomicInteger>();
+
+	public CompoundDemandPredictor() {
+		super("Compound demand predictor");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return INTERVAL;
+	}
+
+	/**
+	 * Hourly arrival rate of a single label for every hour of the week
+	 *
+	 * @author pupssman
+	 */
+	static final class ArrivalModel {
+		private final double[] rate = new double[HOURS_PER_WEEK];
+		private int currentHour = -1;
+		private int currentCount;
+
+		synchronized void arrived(int hourOfWeek, int count) {
+			if (hourOfWeek != currentHour) {
+				if (currentHour >= 0) {
+					rate[currentHour] = ALPHA * currentCount + (1 - ALPHA) * rate[currentHour];
+				}
+				currentHour = hourOfWeek;
+				currentCount = 0;
+			}
+			currentCount += count;
+		}
+
+		/**
+		 * @return expected number of arrivals in the given period starting at the given hour
+		 */
+		synchronized double expected(int hourOfWeek, long millis) {
+			return rate[hourOfWeek] * millis / TimeUnit.HOURS.toMillis(1);
+		}
+	}
+
+	/**
+	 * Hits and misses of speculative provisioning of a single cloud
+	 *
+	 * @author pupssman
+	 */
+	public static final class Stats {
+		private final AtomicLong provisioned = new AtomicLong();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+
+		public long getProvisioned() {
+			return provisioned.get();
+		}
+
+		public long getHits() {
+			return hits.get();
+		}
+
+		public long getMisses() {
+			return misses.get();
+		}
+
+		/**
+		 * @return share of the resolved speculative compounds that got a build
+		 */
+		public double getHitRate() {
+			long total = hits.get() + misses.get();
+			return total == 0 ? 0 : (double) hits.get() / total;
+		}
+	}
+
+	private static final class ExpectedArrival {
+		private final Label label;
+		private final long eta;
+
+		private ExpectedArrival(Label label, long eta) {
+			this.label = label;
+			this.eta = eta;
+		}
+	}
+
+	/**
+	 * @return outcomes of speculation of the given cloud
+	 */
+	public static Stats getStats(CompoundCloud cloud) {
+		Stats result = stats.get(cloud.name);
+
+		if (result == null) {
+			stats.putIfAbsent(cloud.name, new Stats());
+			result = stats.get(cloud.name);
+		}
+
+		return result;
+	}
+
+	private static AtomicInteger getPlanned(CompoundCloud cloud) {
+		AtomicInteger result = planned.get(cloud.name);
+
+		if (result == null) {
+			planned.putIfAbsent(cloud.name, new AtomicInteger());
+			result = planned.get(cloud.name);
+		}
+
+		return result;
+	}
+
+	private static void arrived(Label label) {
+		AtomicInteger count = arrivals.get(label);
+
+		if (count == null) {
+			arrivals.putIfAbsent(label, new AtomicInteger());
+			count = arrivals.get(label);
+		}
+
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return builds started since the last call, by label
+	 */
+	private static Map<Label, Integer> takeArrivals() {
+		Map<Label, Integer> result = new HashMap<Label, Integer>();
+
+		for (Map.Entry<Label, AtomicInteger> arrival: arrivals.entrySet()) {
+			int count = arrival.getValue().getAndSet(0);
+
+			if (count > 0) {
+				result.put(arrival.getKey(), count);
+			}
+		}
+
+		return result;
+	}
+
+	private static ConcurrentMap<Label, ArrivalModel> getModels(CompoundCloud cloud) {
+		ConcurrentMap<Label, ArrivalModel> result = models.get(cloud.name);
+
+		if (result == null) {
+			models.putIfAbsent(cloud.name, new ConcurrentHashMap<Label, ArrivalModel>());
+			result = models.get(cloud.name);
+		}
+
+		return result;
+	}
+
+	private static ArrivalModel getModel(CompoundCloud cloud, Label label) {
+		ConcurrentMap<Label, ArrivalModel> cloudModels = getModels(cloud);
+		ArrivalModel result = cloudModels.get(label);
+
+		if (result == null) {
+			cloudModels.putIfAbsent(label, new ArrivalModel());
+			result = cloudModels.get(label);
+		}
+
+		return result;
+	}
+
+	static int hourOfWeek(long millis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+
+		return (calendar.get(Calendar.DAY_OF_WEEK) - 1) * 24 + calendar.get(Calendar.HOUR_OF_DAY);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		List<CompoundCloud> clouds = new ArrayList<CompoundCloud>();
+
+		for (Cloud cloud: Jenkins.getInstance().clouds) {
+			if (cloud instanceof CompoundCloud && ((CompoundCloud) cloud).getPredictiveBudget() > 0) {
+				clouds.add((CompoundCloud) cloud);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		Map<Label, Integer> arrivals = takeArrivals();
+		Map<Label, Integer> queued = new HashMap<Label, Integer>();
+
+		for (Queue.Item item: Queue.getInstance().getItems()) {
+			Label label = item.getAssignedLabel();
+
+			if (label != null) {
+				increment(queued, label);
+			}
+		}
+
+		for (CompoundCloud cloud: clouds) {
+			try {
+				predict(cloud, now, arrivals, queued);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Failed to predict demand for " + cloud.name, e);
+			}
+		}
+
+		for (ExpectedArrival arrival: expected) {
+			// once upstream is over, downstream is either queued already or not coming
+			if (arrival.eta < now) {
+				expected.remove(arrival);
+			}
+		}
+	}
+
+	private static void increment(Map<Label, Integer> counts, Label label) {
+		Integer count = counts.get(label);
+		counts.put(label, count == null ? 1 : count + 1);
+	}
+
+	private void predict(CompoundCloud cloud, long now, Map<Label, Integer> arrivals, Map<Label, Integer> queued) {
+		int hour = hourOfWeek(now);
+
+		for (Map.Entry<Label, Integer> arrival: arrivals.entrySet()) {
+			if (cloud.canProvision(arrival.getKey())) {
+				getModel(cloud, arrival.getKey()).arrived(hour, arrival.getValue());
+			}
+		}
+
+		for (ExpectedArrival arrival: expected) {
+			if (cloud.canProvision(arrival.label)) {
+				getModel(cloud, arrival.label);
+			}
+		}
+
+		// let the models without arrivals roll over to the current hour too
+		for (ArrivalModel model: getModels(cloud).values()) {
+			model.arrived(hour, 0);
+		}
+
+		// the ones not added to Jenkins yet are not among the nodes below
+		int speculative = getPlanned(cloud).get();
+		Map<Label, Integer> idle = new HashMap<Label, Integer>();
+
+		for (Node node: Jenkins.getInstance().getNodes()) {
+			if (!(node instanceof CompoundSlave) || ((CompoundSlave) node).getCloud() != cloud) {
+				continue;
+			}
+
+			CompoundSlave compoundSlave = (CompoundSlave) node;
+			Computer computer = compoundSlave.toComputer();
+
+			if (compoundSlave.getSpeculatedAt() > 0) {
+				if (computer != null && computer.isIdle() && now - compoundSlave.getSpeculatedAt() > SPECULATIVE_TTL) {
+					terminate(cloud, compoundSlave);
+					continue;
+				}
+				speculative++;
+			}
+
+			if (computer != null && computer.isIdle()) {
+				for (Label label: getModels(cloud).keySet()) {
+					if (label.contains(compoundSlave)) {
+						increment(idle, label);
+					}
+				}
+			}
+		}
+
+		long leadTime = getLeadTime(cloud);
+		int leadHour = hourOfWeek(now + leadTime);
+
+		for (Map.Entry<Label, ArrivalModel> model: getModels(cloud).entrySet()) {
+			Label label = model.getKey();
+			double demand = model.getValue().expected(leadHour, leadTime);
+
+			for (ExpectedArrival arrival: expected) {
+				if (arrival.label.equals(label) && arrival.eta >= now && arrival.eta <= now + leadTime) {
+					demand++;
+				}
+			}
+
+			// queued items are provisioned for by NodeProvisioner already
+			int available = value(idle, label) + value(queued, label);
+			int shortfall = (int) Math.ceil(demand - available);
+
+			for (int i = 0; i < shortfall && speculative < cloud.getPredictiveBudget(); i++) {
+				if (speculate(cloud, label)) {
+					speculative++;
+				} else {
+					break;
+				}
+			}
+		}
+	}
+
+	private static int value(Map<Label, Integer> counts, Label label) {
+		Integer count = counts.get(label);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @return typical time from provisioning start to online compound for the cloud
+	 */
+	private static long getLeadTime(CompoundCloud cloud) {
+		long result = 0;
+
+		for (CompoundCloud.ConfigurationEntry entry: cloud.getConfiguration()) {
+			ProvisioningTimings timings = entry.getTimings();
+			long total = 0;
+
+			for (LatencyHistogram histogram: timings.getHistograms().values()) {
+				total += histogram.getPercentile(50);
+			}
+
+			result = Math.max(result, total);
+		}
+
+		return result == 0 ? DEFAULT_LEAD_TIME : result;
+	}
+
+	private boolean speculate(final CompoundCloud cloud, Label label) {
+		Collection<PlannedNode> plannedNodes = cloud.provision(label, 1);
+
+		if (plannedNodes.isEmpty()) {
+			return false;
+		}
+
+		logger.info("Speculatively provisioning a compound for " + label + " in " + cloud.name);
+		getStats(cloud).provisioned.incrementAndGet();
+
+		final AtomicInteger inFlight = getPlanned(cloud);
+
+		for (final PlannedNode plannedNode: plannedNodes) {
+			inFlight.incrementAndGet();
+
+			Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						Node node = plannedNode.future.get();
+
+						if (node instanceof CompoundSlave) {
+							((CompoundSlave) node).setSpeculatedAt(System.currentTimeMillis());
+						}
+
+						// this is what NodeProvisioner does with the nodes it planned
+						Jenkins.getInstance().addNode(node);
+						node.toComputer().connect(false);
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Speculative provisioning of " + plannedNode.displayName + " in " + cloud.name + " failed", e);
+					} finally {
+						inFlight.decrementAndGet();
+					}
+					return null;
+				}
+			});
+		}
+
+		return true;
+	}
+
+	private static void terminate(CompoundCloud cloud, CompoundSlave compoundSlave) {
+		logger.info("Speculative compound " + compoundSlave.getNodeName() + " was not used, terminating it");
+		getStats(cloud).misses.incrementAndGet();
+
+		try {
+			compoundSlave.terminate();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to terminate " + compoundSlave.getNodeName(), e);
+		} catch (InterruptedException e) {
+			logger.log(Level.WARNING, "Failed to terminate " + compoundSlave.getNodeName(), e);
+		}
+	}
+
+	/**
+	 * Counts hits of speculative compounds and expects downstream builds of the started ones
+	 *
+	 * @author pupssman
+	 */
+	@Extension
+	public static class Listener extends RunListener<Run<?, ?>> {
+		@Override
+		public void onStarted(Run<?, ?> run, TaskListener listener) {
+			Executor executor = run.getExecutor();
+			Node node = executor == null ? null : executor.getOwner().getNode();
+
+			if (node instanceof CompoundSlave) {
+				CompoundSlave compoundSlave = (CompoundSlave) node;
+
+				if (compoundSlave.getSpeculatedAt() > 0 && compoundSlave.getCloud() != null) {
+					compoundSlave.setSpeculatedAt(0);
+					getStats(compoundSlave.getCloud()).hits.incrementAndGet();
+				}
+			}
+
+			if (!(run.getParent() instanceof AbstractProject)) {
+				return;
+			}
+
+			Label assigned = ((AbstractProject<?, ?>) run.getParent()).getAssignedLabel();
+
+			if (assigned != null && isPredicted(assigned)) {
+				arrived(assigned);
+			}
+
+			long eta = System.currentTimeMillis() + run.getEstimatedDuration();
+
+			for (AbstractProject<?, ?> downstream: ((AbstractProject<?, ?>) run.getParent()).getDownstreamProjects()) {
+				Label label = downstream.getAssignedLabel();
+
+				if (label != null && isPredicted(label)) {
+					expected.add(new ExpectedArrival(label, eta));
+				}
+			}
+		}
+
+		private static boolean isPredicted(Label label) {
+			for (Cloud cloud: Jenkins.getInstance().clouds) {
+				if (cloud instanceof CompoundCloud && ((CompoundCloud) cloud).getPredictiveBudget() > 0 && cloud.canProvision(label)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -9,21 +9,50 @@ import hudson.model.EnvironmentContributor;
 import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.Run;
+import hudson.model.Slave;
+import hudson.remoting.VirtualChannel;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jedi.functional.FunctionalPrimitives;
 
 /**
- * This thing is used to contribute slave parameters to running build
+ * This thing is used to contribute slave parameters to running build.
+ *
+ * For every sub-slave exports COMPOUND_&lt;ROLE&gt;_&lt;N&gt;_HOST, _IP and _WORKSPACE (root of the sub-slave workspaces),
+ * N being a 1-based position of the sub-slave in its role as configured, and COMPOUND_&lt;ROLE&gt;_HOSTS with all the hosts of the role.
+ * Values are gathered when the compound launches and cached on its {@link EnvironmentAction},
+ * builds started before that is done wait for it. Sub-slaves still launching are left out and the values are gathered again by the next build.
  *
  * @author pupssman
  */
 @Extension
 public class CompoundEnvironmentContributor extends EnvironmentContributor {
+	private static final Logger logger = Logger.getLogger(CompoundEnvironmentContributor.class.getCanonicalName());
 
 	public static final class EnvironmentAction extends InvisibleAction {
-		private final Map<String, String> values;
+		private volatile Map<String, String> values;
+		/**
+		 * Sub-slaves the values were computed for
+		 */
+		private volatile Map<String, List<String>> members;
+		/**
+		 * Computation started by {@link CompoundEnvironmentContributor#prefetch(CompoundSlave)}, if any
+		 */
+		private volatile Future<?> pending;
 
 		public EnvironmentAction(Map<String, String> values) {
 			this.values = values;
@@ -32,6 +61,24 @@ public class CompoundEnvironmentContributor extends EnvironmentContributor {
 		public Map<String, String> getValues() {
 			return values;
 		}
+
+		/**
+		 * @return if the values were computed for the sub-slaves of the given topology
+		 */
+		public boolean isFor(CompoundTopology topology) {
+			return members != null && members.equals(topology.getNames());
+		}
+
+		/**
+		 * @param values
+		 * @param topology the values were computed for
+		 * @param complete if all the sub-slaves of the topology are accounted for, otherwise values are computed again next time
+		 */
+		void update(Map<String, String> values, CompoundTopology topology, boolean complete) {
+			this.members = null;
+			this.values = values;
+			this.members = complete ? topology.getNames() : null;
+		}
 	}
 
 	@Override
@@ -57,35 +104,158 @@ public class CompoundEnvironmentContributor extends EnvironmentContributor {
 
 	}
 
-	private void buildEnvironmentFor(CompoundSlave slave, EnvVars envs, TaskListener listener) {
-		EnvironmentAction environmentAction = slave.toComputer().getAction(EnvironmentAction.class);
+	private void buildEnvironmentFor(CompoundSlave slave, EnvVars envs, TaskListener listener) throws InterruptedException {
+		EnvironmentAction environmentAction = getEnvironmentAction(slave);
 
-		Map<String, String> values;
+		if (environmentAction == null) {
+			return;
+		}
+
+		CompoundTopology topology = slave.getTopology();
+		Future<?> pending = environmentAction.pending;
+
+		if (!environmentAction.isFor(topology) && pending != null && !pending.isDone()) {
+			listener.getLogger().println("[compound-slave] waiting for environment computed at launch...");
 
-		if (environmentAction != null) {
-			values = environmentAction.getValues();
-		} else {
-			listener.getLogger().println("[compound-slave] no environment known - computing...");
-			values = computeValues(slave, listener);
-			slave.toComputer().addAction(new EnvironmentAction(values));
+			try {
+				pending.get();
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "Failed to compute environment of " + slave.getNodeName(), e.getCause());
+			}
 		}
 
-		envs.putAll(values);
+		if (!environmentAction.isFor(topology)) {
+			listener.getLogger().println("[compound-slave] sub-slaves changed since launch - computing environment...");
+			compute(environmentAction, topology, slave);
+		}
+
+		envs.putAll(environmentAction.getValues());
 	}
 
 	/**
-	 * Compute actual values based on given {@link CompoundSlave}
+	 * @return the action caching environment of the given compound, created on first call, or null if it has no computer
+	 */
+	private static synchronized EnvironmentAction getEnvironmentAction(CompoundSlave slave) {
+		Computer computer = slave.toComputer();
+
+		if (computer == null) {
+			return null;
+		}
+
+		EnvironmentAction environmentAction = computer.getAction(EnvironmentAction.class);
+
+		if (environmentAction == null) {
+			environmentAction = new EnvironmentAction(Collections.<String, String>emptyMap());
+			computer.addAction(environmentAction);
+		}
+
+		return environmentAction;
+	}
+
+	/**
+	 * Computes the environment of a launching compound in background, so the builds find it ready
 	 *
-	 * So far this does nothing (upstream implementation depends on a closed plugin)
 	 * @param slave
-	 * @param listener
-	 * @return
 	 */
-	private Map<String, String> computeValues(CompoundSlave slave, TaskListener listener) {
-		Map<String, String> values;
-		values = new HashMap<String, String>();
+	static void prefetch(final CompoundSlave slave) {
+		final EnvironmentAction environmentAction = getEnvironmentAction(slave);
+
+		if (environmentAction == null) {
+			return;
+		}
 
-		return values;
+		environmentAction.pending = Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				compute(environmentAction, slave.getTopology(), slave);
+				return null;
+			}
+		});
 	}
 
+	/**
+	 * Compute actual values based on given {@link CompoundSlave} and put them to the action.
+	 *
+	 * Every sub-slave gets a single remote call, all of them issued before waiting for any.
+	 * @param environmentAction
+	 * @param topology
+	 * @param slave
+	 * @throws InterruptedException
+	 */
+	private static void compute(EnvironmentAction environmentAction, CompoundTopology topology, CompoundSlave slave) throws InterruptedException {
+		Map<Slave, Future<String[]>> hosts = new LinkedHashMap<Slave, Future<String[]>>();
+		boolean complete = true;
+
+		for (Slave subSlave: topology.getAll()) {
+			if (slave.getLauncher() instanceof CompoundLauncher && ((CompoundLauncher) slave.getLauncher()).isLaunching(subSlave)) {
+				// sub-slaves out of quorum may still be launching, they are not waited for
+				complete = false;
+				continue;
+			}
+
+			VirtualChannel channel = subSlave.getChannel();
+
+			if (channel == null) {
+				continue;
+			}
+
+			try {
+				hosts.put(subSlave, channel.callAsync(new HostInfo()));
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to query " + subSlave.getNodeName(), e);
+			}
+		}
+
+		Map<String, String> values = new HashMap<String, String>();
+
+		for (String role: topology.getRoles()) {
+			String prefix = "COMPOUND_" + role.toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9]", "_") + "_";
+			List<String> roleHosts = new ArrayList<String>();
+			List<Slave> positions = topology.getPositions(role);
+
+			for (int i = 0; i < positions.size(); i++) {
+				Slave subSlave = positions.get(i);
+
+				if (subSlave == null) {
+					continue;
+				}
+
+				String name = prefix + (i + 1) + "_";
+
+				if (subSlave.getWorkspaceRoot() != null) {
+					values.put(name + "WORKSPACE", subSlave.getWorkspaceRoot().getRemote());
+				}
+
+				Future<String[]> future = hosts.get(subSlave);
+
+				if (future == null) {
+					continue;
+				}
+
+				try {
+					String[] host = future.get();
+					values.put(name + "HOST", host[0]);
+					values.put(name + "IP", host[1]);
+					roleHosts.add(host[0]);
+				} catch (ExecutionException e) {
+					logger.log(Level.WARNING, "Failed to query " + subSlave.getNodeName(), e.getCause());
+				}
+			}
+
+			values.put(prefix + "HOSTS", FunctionalPrimitives.join(roleHosts, ","));
+		}
+
+		environmentAction.update(values, topology, complete);
+	}
+
+	private static final class HostInfo implements hudson.remoting.Callable<String[], IOException> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public String[] call() throws IOException {
+			InetAddress address = InetAddress.getLocalHost();
+
+			return new String[] {address.getCanonicalHostName(), address.getHostAddress()};
+		}
+	}
 }
@@ -0,0 +1,290 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.AbstractCloudSlave;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Pings all the sub-slaves of all online {@link CompoundSlave}s at once.
+ *
+ * Compound is marked degraded if some sub-slaves are dead and offline if ROOT or a quorum of some role is lost.
+ * A sub-slave is dead if it stops answering after it has been online, or if it does not come online within {@link #LAUNCH_TIMEOUT}.
+ * Dead sub-slaves are replaced from the backend cloud if {@link CompoundCloud#isReplaceDeadSlaves()}.
+ *
+ * @author pupssman
+ */
+@Extension
+public class CompoundHealthMonitor extends AsyncPeriodicWork {
+	private static final long INTERVAL = Long.getLong(CompoundHealthMonitor.class.getName() + ".interval", 10000);
+	private static final long PING_TIMEOUT = Long.getLong(CompoundHealthMonitor.class.getName() + ".pingTimeout", 5000);
+	/**
+	 * How long a sub-slave that is launching or has never been online may stay offline before it is counted dead, milliseconds
+	 */
+	private static final long LAUNCH_TIMEOUT = Long.getLong(CompoundHealthMonitor.class.getName() + ".launchTimeout", 600000);
+
+	private static final Logger logger = Logger.getLogger(CompoundHealthMonitor.class.getCanonicalName());
+
+	/**
+	 * Names of the sub-slaves being replaced at the moment
+	 */
+	private final Set<String> replacing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * When replacement failed last time, by compound and role, see {@link #getReplacementKey(CompoundSlave, String)}
+	 */
+	private final Map<String, Long> replacementProblems = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Sub-slaves that answered a ping while their compound was online, see {@link #getSubSlaveKey(CompoundSlave, Slave)}
+	 */
+	private final Set<String> seenAlive = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * When the sub-slaves that are launching or have never been online were first found not answering
+	 */
+	private final Map<String, Long> offlineSince = new ConcurrentHashMap<String, Long>();
+
+	public CompoundHealthMonitor() {
+		super("Compound slaves health monitor");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return INTERVAL;
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		Map<Slave, Future<Void>> pings = new LinkedHashMap<Slave, Future<Void>>();
+		List<CompoundSlave> compounds = new ArrayList<CompoundSlave>();
+
+		for (Node node: Jenkins.getInstance().getNodes()) {
+			if (node instanceof CompoundSlave && node.toComputer() != null && node.toComputer().getChannel() != null) {
+				CompoundSlave compoundSlave = (CompoundSlave) node;
+				compounds.add(compoundSlave);
+
+				for (List<Slave> slaves: compoundSlave.getAllSlaves().values()) {
+					for (Slave slave: slaves) {
+						pings.put(slave, ping(slave));
+					}
+				}
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + PING_TIMEOUT;
+		Set<Slave> alive = new HashSet<Slave>();
+
+		for (Map.Entry<Slave, Future<Void>> ping: pings.entrySet()) {
+			if (ping.getValue() == null) {
+				continue;
+			}
+			try {
+				ping.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+				alive.add(ping.getKey());
+			} catch (ExecutionException e) {
+				logger.log(Level.FINE, "Ping of " + ping.getKey().getNodeName() + " failed", e.getCause());
+			} catch (TimeoutException e) {
+				ping.getValue().cancel(true);
+				logger.fine("Ping of " + ping.getKey().getNodeName() + " timed out");
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		Set<String> checked = new HashSet<String>();
+
+		for (CompoundSlave compoundSlave: compounds) {
+			check(compoundSlave, alive, now, checked);
+		}
+
+		// forget the sub-slaves that are not in online compounds anymore
+		seenAlive.retainAll(checked);
+		offlineSince.keySet().retainAll(checked);
+
+		// forget the failures of the compounds that are gone
+		for (String key: replacementProblems.keySet()) {
+			if (Jenkins.getInstance().getNode(key.substring(0, key.lastIndexOf('/'))) == null) {
+				replacementProblems.remove(key);
+			}
+		}
+	}
+
+	private Future<Void> ping(Slave slave) {
+		VirtualChannel channel = slave.getChannel();
+
+		if (channel == null) {
+			return null;
+		}
+
+		try {
+			return channel.callAsync(new Ping());
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to ping " + slave.getNodeName(), e);
+			return null;
+		}
+	}
+
+	private void check(CompoundSlave compoundSlave, Set<Slave> alive, long now, Set<String> checked) {
+		CompoundComputer computer = (CompoundComputer) compoundSlave.toComputer();
+		List<String> dead = new ArrayList<String>();
+		boolean quorumLost = false;
+
+		for (Map.Entry<String, List<Slave>> entry: compoundSlave.getAllSlaves().entrySet()) {
+			int aliveInRole = 0;
+
+			for (Slave slave: entry.getValue()) {
+				String key = getSubSlaveKey(compoundSlave, slave);
+				checked.add(key);
+
+				if (alive.contains(slave)) {
+					aliveInRole++;
+					seenAlive.add(key);
+					offlineSince.remove(key);
+				} else if (!isDead(compoundSlave, slave, key, now)) {
+					continue;
+				} else {
+					dead.add(slave.getNodeName());
+					quorumLost |= slave == compoundSlave.getSelf();
+
+					replace(compoundSlave, entry.getKey(), slave);
+				}
+			}
+
+			quorumLost |= aliveInRole < Math.min(compoundSlave.getQuorum(entry.getKey()), entry.getValue().size());
+		}
+
+		if (!dead.equals(computer.getDeadSubSlaves())) {
+			logger.warning("Compound " + compoundSlave.getNodeName() + " has dead sub-slaves: " + dead);
+		}
+
+		computer.setDeadSubSlaves(dead);
+
+		if (quorumLost && !computer.isTemporarilyOffline()) {
+			logger.warning("Compound " + compoundSlave.getNodeName() + " lost quorum, marking it offline");
+			computer.setTemporarilyOffline(true, new CompoundComputer.SubSlavesLost(dead));
+		} else if (!quorumLost && computer.getOfflineCause() instanceof CompoundComputer.SubSlavesLost) {
+			logger.info("Compound " + compoundSlave.getNodeName() + " restored quorum, marking it online");
+			computer.setTemporarilyOffline(false, null);
+		}
+	}
+
+	/**
+	 * A sub-slave that does not answer is dead if it has been online and is not launched again,
+	 * otherwise it has until {@link #LAUNCH_TIMEOUT} since it was first found not answering to come online
+	 */
+	private boolean isDead(CompoundSlave compoundSlave, Slave slave, String key, long now) {
+		if (seenAlive.contains(key) && !isLaunching(compoundSlave, slave)) {
+			return true;
+		}
+
+		Long since = offlineSince.get(key);
+
+		if (since == null) {
+			offlineSince.put(key, now);
+			return false;
+		}
+
+		return now - since >= LAUNCH_TIMEOUT;
+	}
+
+	/**
+	 * @return if the sub-slave is launched by the compound or by Jenkins at the moment
+	 */
+	private static boolean isLaunching(CompoundSlave compoundSlave, Slave slave) {
+		Computer slaveComputer = slave.toComputer();
+
+		return (compoundSlave.getLauncher() instanceof CompoundLauncher && ((CompoundLauncher) compoundSlave.getLauncher()).isLaunching(slave))
+				|| (slaveComputer != null && slaveComputer.isConnecting());
+	}
+
+	private static String getSubSlaveKey(CompoundSlave compoundSlave, Slave slave) {
+		return compoundSlave.getNodeName() + "/" + slave.getNodeName();
+	}
+
+	private static String getReplacementKey(CompoundSlave compoundSlave, String role) {
+		return compoundSlave.getNodeName() + "/" + role;
+	}
+
+	/**
+	 * Replaces the dead sub-slave in background, if the compound cloud allows that.
+	 *
+	 * After a failure, the role of the compound is not replaced again until the retry timeout of the cloud passes.
+	 */
+	private void replace(final CompoundSlave compoundSlave, final String role, final Slave dead) {
+		final CompoundCloud cloud = compoundSlave.getCloud();
+
+		if (cloud == null || !cloud.isReplaceDeadSlaves() || dead == compoundSlave.getSelf()) {
+			return;
+		}
+
+		final String key = getReplacementKey(compoundSlave, role);
+		Long problems = replacementProblems.get(key);
+
+		if (problems != null && cloud.getBackoffRemaining(problems, System.currentTimeMillis()) > 0) {
+			return;
+		}
+
+		if (!replacing.add(dead.getNodeName())) {
+			return;
+		}
+
+		Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					logger.info("Replacing dead sub-slave " + dead.getNodeName() + " of " + compoundSlave.getNodeName());
+					Slave replacement = cloud.provisionReplacement(compoundSlave, role);
+
+					compoundSlave.replaceSlave(role, dead, replacement);
+					replacement.toComputer().connect(false).get();
+					// connecting may bring up a new computer
+					CompoundSlave.enslave(replacement, compoundSlave);
+
+					if (dead instanceof AbstractCloudSlave) {
+						((AbstractCloudSlave) dead).terminate();
+					}
+
+					replacementProblems.remove(key);
+				} catch (Exception e) {
+					replacementProblems.put(key, System.currentTimeMillis());
+					logger.log(Level.WARNING, "Failed to replace sub-slave " + dead.getNodeName() + " of " + compoundSlave.getNodeName() + ", next try in " + cloud.getRetryTimeout() + " s", e);
+				} finally {
+					replacing.remove(dead.getNodeName());
+				}
+				return null;
+			}
+		});
+	}
+
+	private static final class Ping implements hudson.remoting.Callable<Void, IOException> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Void call() throws IOException {
+			return null;
+		}
+	}
+}
@@ -12,16 +12,32 @@ import hudson.slaves.SlaveComputer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jedi.functional.FunctionalPrimitives;
+import ru.yandex.jenkins.plugins.compound.ProvisioningTimings.Phase;
+
 /**
  * A {@link Launcher} for {@link CompoundSlave}.
  *
- * Tries to launch all sub-slaves first and marks them as non-accepting tasks when in {@link CompoundSlave}.
+ * Launches all sub-slaves in parallel and marks them as non-accepting tasks when in {@link CompoundSlave}.
+ * Root is attached as soon as ROOT sub-slave and a quorum of each role are online, the rest keep launching in background
+ * until the compound disconnects, then they are cancelled and leave their sub-slaves free.
+ * If enabled globally, each sub-slave channel is pre-warmed with {@link ChannelPrewarm} as part of its launch.
+ * Disconnect hooks of the sub-slave launchers run concurrently, within a common deadline.
  *
  * @author pupssman
  *
@@ -29,8 +45,23 @@ import java.util.logging.Logger;
 public class CompoundLauncher extends ComputerLauncher {
 	private static final Logger logger = Logger.getLogger(CompoundLauncher.class.getCanonicalName());
 
+	/**
+	 * How long to wait for disconnect hooks of all the sub-slaves, milliseconds
+	 */
+	private static final long DISCONNECT_TIMEOUT = Long.getLong(CompoundLauncher.class.getName() + ".disconnectTimeout", 120000);
+
 	private CompoundSlave compoundSlave;
 
+	/**
+	 * Launches of sub-slaves by their names, may still be running after the compound is online
+	 */
+	private transient Map<String, Future<Boolean>> pending;
+
+	/**
+	 * Bumped by every launch and disconnect, launches of sub-slaves that started before the last bump must not reserve them
+	 */
+	private transient int generation;
+
 	public CompoundLauncher(CompoundSlave slave) {
 		this.compoundSlave = slave;
 	}
@@ -43,50 +74,223 @@ public class CompoundLauncher extends ComputerLauncher {
 
 	@Override
 	public void launch(SlaveComputer computer, final TaskListener listener) throws IOException, InterruptedException {
-		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		CompletionService<Boolean> launches = new ExecutorCompletionService<Boolean>(Computer.threadPoolForRemoting);
+		Map<Future<Boolean>, Slave> launched = new HashMap<Future<Boolean>, Slave>();
+		// roles are taken at submission, as sub-slaves may be replaced or dropped while launching
+		Map<Future<Boolean>, String> roles = new HashMap<Future<Boolean>, String>();
 
-		for(final Slave slave: getSlaves()) {
-			say(listener, "Launching sub-slave " + slave.getNodeName());
-			SlaveComputer slaveComputer = slave.getComputer();
+		getPending().clear();
 
-			if (slaveComputer.isConnecting() || slaveComputer.isOnline()) {
-				say(listener, slave.getNodeName() + " already running");
-				CompoundSlave.enslave(slave, compoundSlave);
-				continue;
-			}
+		final int launchGeneration;
+		synchronized (this) {
+			launchGeneration = ++generation;
+		}
+
+		final ProvisioningTimings timings = getTimings();
+		final ProvisioningTrace trace = compoundSlave.getTrace();
+		ProvisioningTrace.Span launchSpan = trace.begin("CompoundLauncher.launch", "launch");
+		final ChannelPrewarm prewarm = ChannelPrewarm.isEnabled() ? ChannelPrewarm.forCompound(compoundSlave) : null;
+		final CompoundTopology topology = compoundSlave.getTopology();
 
-			futures.add(Computer.threadPoolForRemoting.submit(new Callable<Boolean>() {
+		// reserve everyone before any launch starts, so that no other job gets in between
+		long enslaveStarted = System.currentTimeMillis();
+		ProvisioningTrace.Span enslaveSpan = trace.begin("enslave", "launch");
+		for (Slave slave: topology.getAll()) {
+			CompoundSlave.enslave(slave, compoundSlave);
+		}
+		enslaveSpan.end();
+		record(timings, Phase.ENSLAVE, enslaveStarted);
+
+		for (final Slave slave: topology.getAll()) {
+			Future<Boolean> future = launches.submit(new Callable<Boolean>() {
 				@Override
 				public Boolean call() throws Exception {
-					slave.getLauncher().launch(slave.getComputer(), listener);
-					CompoundSlave.enslave(slave, compoundSlave);
-					return slave.getComputer().isOnline();
+					SlaveComputer slaveComputer = slave.getComputer();
+					String track = "launch " + slave.getNodeName();
+
+					if (slaveComputer == null) {
+						say(listener, "Sub-slave " + slave.getNodeName() + " has no computer, can't launch it");
+						return false;
+					} else if (slaveComputer.isOnline()) {
+						say(listener, slave.getNodeName() + " already running");
+					} else if (slaveComputer.isConnecting()) {
+						say(listener, slave.getNodeName() + " is connecting already, waiting");
+						ProvisioningTrace.Span span = trace.begin("wait for connect", track);
+						slaveComputer.connect(false).get();
+						span.end();
+					} else {
+						say(listener, "Launching sub-slave " + slave.getNodeName());
+						long started = System.currentTimeMillis();
+						ProvisioningTrace.Span span = trace.begin("launch", track);
+						slave.getLauncher().launch(slaveComputer, listener);
+						span.end();
+						record(timings, Phase.SUB_SLAVE_LAUNCH, started);
+					}
+
+					// some launchers bring up a new computer
+					if (!enslave(slave, launchGeneration)) {
+						say(listener, "Compound went offline while " + slave.getNodeName() + " was launching, leaving it free");
+						return false;
+					}
+
+					slaveComputer = slave.getComputer();
+					boolean online = slaveComputer != null && slaveComputer.isOnline();
+					if (!online) {
+						say(listener, "Sub-slave " + slave.getNodeName() + " failed to come online");
+					} else if (prewarm != null) {
+						ProvisioningTrace.Span prewarmSpan = trace.begin("prewarm", track);
+						prewarm.warm(slave.getChannel(), slave.getNodeName());
+						prewarmSpan.end();
+					}
+					return online;
 				}
-			}));
+			});
+
+			launched.put(future, slave);
+			roles.put(future, topology.getRole(slave.getNodeName()));
+			getPending().put(slave.getNodeName(), future);
 		}
 
-		boolean allSlavesLaunched = true;
+		// how many sub-slaves are still needed to fulfill quorum for each role
+		Map<String, Integer> needed = new HashMap<String, Integer>();
+		// how many sub-slaves are still launching for each role
+		Map<String, Integer> remaining = new HashMap<String, Integer>();
 
-		for (Future<Boolean> future: futures) {
+		for (Map.Entry<String, List<Slave>> entry: topology.getByRole().entrySet()) {
+			needed.put(entry.getKey(), Math.min(compoundSlave.getQuorum(entry.getKey()), entry.getValue().size()));
+			remaining.put(entry.getKey(), entry.getValue().size());
+		}
+
+		boolean rootLaunched = false;
+		boolean quorumPossible = true;
+
+		for (int i = 0; i < launched.size() && quorumPossible && !(rootLaunched && isQuorum(needed)); i++) {
+			Future<Boolean> future = launches.take();
+			Slave slave = launched.get(future);
+			String role = roles.get(future);
+
+			boolean online;
 			try {
-				allSlavesLaunched &= future.get();
+				online = future.get();
 			} catch (ExecutionException e) {
-				e.printStackTrace(listener.fatalError("Sub-slave start failed"));
-				allSlavesLaunched = false;
+				e.printStackTrace(listener.fatalError("Sub-slave " + slave.getNodeName() + " start failed"));
+				online = false;
+			}
+
+			remaining.put(role, remaining.get(role) - 1);
+
+			if (online) {
+				needed.put(role, needed.get(role) - 1);
+				rootLaunched |= slave == topology.getRoot();
+			} else if (slave == topology.getRoot() || remaining.get(role) < needed.get(role)) {
+				quorumPossible = false;
 			}
 		}
 
-		if (allSlavesLaunched) {
+		if (rootLaunched && isQuorum(needed)) {
 			say(listener, "Launching root");
-			computer.setChannel(compoundSlave.getSelf().getComputer().getChannel(), listener.getLogger(), new Listener() {
+			long started = System.currentTimeMillis();
+			ProvisioningTrace.Span span = trace.begin("root attach", "launch");
+			computer.setChannel(topology.getRoot().getComputer().getChannel(), listener.getLogger(), new Listener() {
 				@Override
 				public void onClosed(Channel channel, IOException cause) {
 					listener.getLogger().print("Slave <" + compoundSlave.getDisplayName() + ">: channel closed");
 				}
 			});
+			span.end();
+			record(timings, Phase.ROOT_ATTACH, started);
+
+			CompoundEnvironmentContributor.prefetch(compoundSlave);
 		} else {
 			say(listener, "Some slaves failed to come online, not launching root.");
 		}
+
+		launchSpan.end();
+	}
+
+	/**
+	 * @return timings of the configuration this compound was provisioned with, or null if it was created manually
+	 */
+	private ProvisioningTimings getTimings() {
+		CompoundCloud cloud = compoundSlave.getCloud();
+
+		if (cloud == null) {
+			return null;
+		}
+
+		CompoundCloud.ConfigurationEntry entry = cloud.getConfigurationFor(compoundSlave);
+
+		return entry == null ? null : entry.getTimings();
+	}
+
+	private static void record(ProvisioningTimings timings, Phase phase, long started) {
+		if (timings != null) {
+			timings.record(phase, started);
+		}
+	}
+
+	/**
+	 * Reserves the sub-slave for the compound, unless the compound was disconnected or launched again since the given launch started
+	 *
+	 * @return if the sub-slave was reserved
+	 */
+	private synchronized boolean enslave(Slave slave, int launchGeneration) {
+		if (launchGeneration != generation) {
+			return false;
+		}
+
+		CompoundSlave.enslave(slave, compoundSlave);
+		return true;
+	}
+
+	private static boolean isQuorum(Map<String, Integer> needed) {
+		for (int number: needed.values()) {
+			if (number > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Map<String, Future<Boolean>> getPending() {
+		if (pending == null) {
+			pending = new ConcurrentHashMap<String, Future<Boolean>>();
+		}
+		return pending;
+	}
+
+	/**
+	 * @param slave
+	 * @return if the given sub-slave is still being launched by this launcher
+	 */
+	public boolean isLaunching(Slave slave) {
+		Future<Boolean> future = getPending().get(slave.getNodeName());
+
+		return future != null && !future.isDone();
+	}
+
+	/**
+	 * Waits for the given sub-slave to finish launching, if it is still being launched by this launcher.
+	 *
+	 * @param slave
+	 * @return if the sub-slave is online
+	 * @throws InterruptedException
+	 */
+	public boolean waitFor(Slave slave) throws InterruptedException {
+		Future<Boolean> future = getPending().get(slave.getNodeName());
+
+		if (future != null) {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "Sub-slave " + slave.getNodeName() + " failed to launch", e.getCause());
+				return false;
+			}
+		}
+
+		Computer slaveComputer = slave.getComputer();
+
+		return slaveComputer != null && slaveComputer.isOnline();
 	}
 
 	private Logger getLogger() {
@@ -94,28 +298,112 @@ public class CompoundLauncher extends ComputerLauncher {
 	}
 
 	private Collection<Slave> getSlaves() {
-		List<Slave> result = new ArrayList<Slave>();
+		return compoundSlave.getTopology().getAll();
+	}
+
+	/**
+	 * A disconnect hook of a sub-slave launcher
+	 */
+	private static interface DisconnectHook {
+		void run(Slave slave, SlaveComputer slaveComputer);
+	}
+
+	/**
+	 * Runs the hook for all the sub-slaves at once and waits for them until {@link #DISCONNECT_TIMEOUT}.
+	 *
+	 * Failed and late hooks are reported together, the late ones are interrupted.
+	 *
+	 * @param name of the hook
+	 * @param listener
+	 * @param hook
+	 */
+	private void runConcurrently(String name, TaskListener listener, final DisconnectHook hook) {
+		Map<Slave, Future<?>> futures = new LinkedHashMap<Slave, Future<?>>();
+
+		for (final Slave slave: getSlaves()) {
+			final SlaveComputer slaveComputer = slave.getComputer();
+
+			if (slaveComputer == null) {
+				continue;
+			}
+
+			futures.put(slave, Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					hook.run(slave, slaveComputer);
+					return null;
+				}
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + DISCONNECT_TIMEOUT;
+		List<String> failures = new ArrayList<String>();
+		boolean interrupted = false;
+
+		for (Map.Entry<Slave, Future<?>> entry: futures.entrySet()) {
+			String slaveName = entry.getKey().getNodeName();
+
+			try {
+				if (interrupted) {
+					entry.getValue().cancel(true);
+					failures.add(slaveName + ": interrupted");
+				} else {
+					entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, name + " failed for " + slaveName, e.getCause());
+				failures.add(slaveName + ": " + e.getCause());
+			} catch (TimeoutException e) {
+				entry.getValue().cancel(true);
+				failures.add(slaveName + ": did not finish in " + DISCONNECT_TIMEOUT + " ms");
+			} catch (InterruptedException e) {
+				entry.getValue().cancel(true);
+				failures.add(slaveName + ": interrupted");
+				interrupted = true;
+			}
+		}
 
-		for (List<Slave> slaves: compoundSlave.getAllSlaves().values()) {
-			result.addAll(slaves);
+		if (!failures.isEmpty()) {
+			say(listener, name + " failed for " + failures.size() + " of " + futures.size() + " sub-slaves:\n\t" + FunctionalPrimitives.join(failures, "\n\t"));
 		}
 
-		return result;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	@Override
-	public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
+	public void afterDisconnect(SlaveComputer computer, final TaskListener listener) {
+		// launches still running must neither finish nor reserve their sub-slaves again
+		synchronized (this) {
+			generation++;
+		}
+
+		for (Future<Boolean> future: getPending().values()) {
+			future.cancel(true);
+		}
+		getPending().clear();
+
 		for(Slave slave: getSlaves()) {
 			CompoundSlave.free(slave);
-			slave.getLauncher().afterDisconnect(slave.getComputer(), listener);
 		}
+
+		runConcurrently("afterDisconnect", listener, new DisconnectHook() {
+			@Override
+			public void run(Slave slave, SlaveComputer slaveComputer) {
+				slave.getLauncher().afterDisconnect(slaveComputer, listener);
+			}
+		});
 	}
 
 	@Override
-	public void beforeDisconnect(SlaveComputer computer, TaskListener listener) {
-		for(Slave slave: getSlaves()) {
-			slave.getLauncher().beforeDisconnect(slave.getComputer(), listener);
-		}
+	public void beforeDisconnect(SlaveComputer computer, final TaskListener listener) {
+		runConcurrently("beforeDisconnect", listener, new DisconnectHook() {
+			@Override
+			public void run(Slave slave, SlaveComputer slaveComputer) {
+				slave.getLauncher().beforeDisconnect(slaveComputer, listener);
+			}
+		});
 	}
 
 }
@@ -0,0 +1,95 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Build action listing the separate sub-slave logs written by {@link CompoundBuilder}
+ *
+ * @author pupssman
+ */
+public class CompoundLogAction implements Action {
+	static final String LOG_DIR = "compound-logs";
+
+	private final List<String> logs = new ArrayList<String>();
+
+	/**
+	 * Registers a new log file for the given sub-slave
+	 * @return a file to write the log to
+	 */
+	public synchronized File newLog(AbstractBuild<?, ?> build, String slaveName) {
+		String name = slaveName + ".log.gz";
+
+		for (int i = 2; logs.contains(name); i++) {
+			name = slaveName + "-" + i + ".log.gz";
+		}
+
+		logs.add(name);
+
+		return getLogFile(build, name);
+	}
+
+	public synchronized List<String> getLogs() {
+		return new ArrayList<String>(logs);
+	}
+
+	private static File getLogFile(AbstractBuild<?, ?> build, String name) {
+		return new File(new File(build.getRootDir(), LOG_DIR), name);
+	}
+
+	/**
+	 * Serves a log uncompressed
+	 */
+	public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		String name = req.getRestOfPath();
+
+		if (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+
+		AbstractBuild<?, ?> build = req.findAncestorObject(AbstractBuild.class);
+
+		if (build == null || !getLogs().contains(name)) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		rsp.setContentType("text/plain;charset=UTF-8");
+
+		InputStream in = new GZIPInputStream(new FileInputStream(getLogFile(build, name)));
+		try {
+			IOUtils.copy(in, rsp.getOutputStream());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public String getIconFileName() {
+		return "clipboard.png";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Sub-slave logs";
+	}
+
+	@Override
+	public String getUrlName() {
+		return LOG_DIR;
+	}
+}
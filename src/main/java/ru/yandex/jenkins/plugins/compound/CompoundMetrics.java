@@ -0,0 +1,153 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerResponse;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.ProvisioningTimings.Phase;
+
+/**
+ * Builds JSON status of {@link CompoundCloud}s and {@link CompoundSlave}s out of their counters
+ *
+ * @author pupssman
+ */
+public class CompoundMetrics {
+	private CompoundMetrics() {
+		// utility
+	}
+
+	public static JSONObject forCloud(CompoundCloud cloud) {
+		JSONObject result = new JSONObject();
+
+		result.put("name", cloud.name);
+		result.put("backend", cloud.getBackend());
+
+		JSONArray configurations = new JSONArray();
+		for (ConfigurationEntry entry: cloud.getConfiguration()) {
+			configurations.add(forConfiguration(cloud, entry));
+		}
+		result.put("configurations", configurations);
+
+		int compounds = 0;
+		for (Node node: Jenkins.getInstance().getNodes()) {
+			if (node instanceof CompoundSlave && cloud == ((CompoundSlave) node).getCloud()) {
+				compounds++;
+			}
+		}
+		result.put("compounds", compounds);
+
+		CompoundDemandPredictor.Stats stats = CompoundDemandPredictor.getStats(cloud);
+		JSONObject prediction = new JSONObject();
+		prediction.put("budget", cloud.getPredictiveBudget());
+		prediction.put("provisioned", stats.getProvisioned());
+		prediction.put("hits", stats.getHits());
+		prediction.put("misses", stats.getMisses());
+		prediction.put("hitRate", stats.getHitRate());
+		result.put("prediction", prediction);
+		result.put("threadPool", forThreadPool());
+
+		return result;
+	}
+
+	private static JSONObject forConfiguration(CompoundCloud cloud, ConfigurationEntry entry) {
+		JSONObject result = new JSONObject();
+		ProvisioningCounters counters = entry.getCounters();
+
+		result.put("label", entry.getLabelExpression());
+		result.put("provisioned", counters.getProvisioned());
+		result.put("inFlight", counters.getInFlight());
+		result.put("failed", counters.getFailed());
+		result.put("terminated", counters.getTerminated());
+		result.put("lastProblems", entry.lastProblems);
+		result.put("backoffRemainingMillis", cloud.getBackoffRemaining(entry));
+
+		JSONObject timings = new JSONObject();
+		for (Map.Entry<Phase, LatencyHistogram> histogram: entry.getTimings().getHistograms().entrySet()) {
+			timings.put(histogram.getKey().name(), forHistogram(histogram.getValue()));
+		}
+		result.put("timings", timings);
+
+		return result;
+	}
+
+	private static JSONObject forHistogram(LatencyHistogram histogram) {
+		JSONObject result = new JSONObject();
+
+		result.put("count", histogram.getCount());
+		result.put("mean", histogram.getMean());
+		result.put("p50", histogram.getPercentile(50));
+		result.put("p95", histogram.getPercentile(95));
+		result.put("p99", histogram.getPercentile(99));
+		result.put("max", histogram.getMax());
+
+		return result;
+	}
+
+	private static JSONObject forThreadPool() {
+		JSONObject result = new JSONObject();
+
+		if (Computer.threadPoolForRemoting instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) Computer.threadPoolForRemoting;
+
+			result.put("active", pool.getActiveCount());
+			result.put("size", pool.getPoolSize());
+			result.put("largest", pool.getLargestPoolSize());
+			result.put("queued", pool.getQueue().size());
+			result.put("completed", pool.getCompletedTaskCount());
+		}
+
+		return result;
+	}
+
+	public static JSONObject forCompound(CompoundSlave compoundSlave) {
+		JSONObject result = new JSONObject();
+		CompoundComputer computer = (CompoundComputer) compoundSlave.toComputer();
+
+		result.put("name", compoundSlave.getNodeName());
+		result.put("cloud", compoundSlave.getCloud() == null ? null : compoundSlave.getCloud().name);
+		result.put("configuration", compoundSlave.getConfigurationLabel());
+
+		if (computer != null) {
+			result.put("online", computer.isOnline());
+			result.put("degraded", computer.isDegraded());
+			result.put("deadSubSlaves", JSONArray.fromObject(computer.getDeadSubSlaves()));
+		}
+
+		JSONObject roles = new JSONObject();
+		for (Map.Entry<String, List<Slave>> entry: compoundSlave.getAllSlaves().entrySet()) {
+			JSONObject role = new JSONObject();
+			int online = 0;
+
+			for (Slave slave: entry.getValue()) {
+				if (slave.getComputer() != null && slave.getComputer().isOnline()) {
+					online++;
+				}
+			}
+
+			role.put("total", entry.getValue().size());
+			role.put("online", online);
+			role.put("quorum", compoundSlave.getQuorum(entry.getKey()));
+			roles.put(entry.getKey(), role);
+		}
+		result.put("roles", roles);
+
+		return result;
+	}
+
+	static void write(JSONObject json, StaplerResponse rsp) throws IOException {
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(json.toString());
+	}
+}
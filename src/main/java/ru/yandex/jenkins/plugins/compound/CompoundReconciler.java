@@ -0,0 +1,237 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Brings all the {@link CompoundSlave}s back after Jenkins restart.
+ *
+ * Provisioning interrupted by restart is recovered first, see {@link CompoundCloud#recoverProvisioning()}.
+ * Topology of every compound is checked in parallel: all the present sub-slaves are occupied right away, without waiting for {@link CompoundLauncher},
+ * missing ones are dropped, and changes are saved once. Compounds that lost their root sub-slave are terminated,
+ * and replacements of missing sub-slaves are provisioned in background, as that takes the backend and must not hold Jenkins start up.
+ *
+ * @author pupssman
+ */
+public class CompoundReconciler {
+	private static final Logger logger = Logger.getLogger(CompoundReconciler.class.getCanonicalName());
+
+	/**
+	 * What is left to do about a compound after its reconciliation
+	 */
+	static final class Result {
+		private final CompoundSlave compoundSlave;
+		private final List<String[]> replacements = new ArrayList<String[]>();
+		private int enslaved = 0;
+		private boolean changed = false;
+		private boolean rootless = false;
+
+		Result(CompoundSlave compoundSlave) {
+			this.compoundSlave = compoundSlave;
+		}
+
+		/**
+		 * @return number of sub-slaves occupied
+		 */
+		int getEnslaved() {
+			return enslaved;
+		}
+
+		/**
+		 * @return if the compound was changed and needs to be saved
+		 */
+		boolean isChanged() {
+			return changed;
+		}
+
+		/**
+		 * @return if the compound lost its root sub-slave and has to be terminated
+		 */
+		boolean isRootless() {
+			return rootless;
+		}
+
+		/**
+		 * @return pairs of role and name of the missing sub-slaves to be replaced
+		 */
+		List<String[]> getReplacements() {
+			return replacements;
+		}
+	}
+
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void reconcileAll() throws InterruptedException {
+		long started = System.currentTimeMillis();
+
+		for (Cloud cloud: Jenkins.getInstance().clouds) {
+			if (cloud instanceof CompoundCloud) {
+				try {
+					((CompoundCloud) cloud).recoverProvisioning();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to recover provisioning of " + cloud.name, e);
+				}
+			}
+		}
+
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+		for (Node node: Jenkins.getInstance().getNodes()) {
+			if (node instanceof CompoundSlave) {
+				final CompoundSlave compoundSlave = (CompoundSlave) node;
+
+				futures.add(Computer.threadPoolForRemoting.submit(new Callable<Result>() {
+					@Override
+					public Result call() throws Exception {
+						return reconcile(compoundSlave);
+					}
+				}));
+			}
+		}
+
+		final List<Result> results = new ArrayList<Result>();
+		int enslaved = 0;
+		boolean changed = false;
+
+		for (Future<Result> future: futures) {
+			try {
+				Result result = future.get();
+				results.add(result);
+				enslaved += result.getEnslaved();
+				changed |= result.isChanged();
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "Failed to reconcile compound slave", e.getCause());
+			}
+		}
+
+		if (changed) {
+			try {
+				Jenkins.getInstance().save();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to save reconciled compound slaves", e);
+			}
+		}
+
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			@Override
+			public void run() {
+				finish(results);
+			}
+		});
+
+		logger.info("Reconciled " + futures.size() + " compound slaves with " + enslaved + " sub-slaves in " + (System.currentTimeMillis() - started) + " ms");
+	}
+
+	/**
+	 * Checks the topology of the compound and occupies all of its present sub-slaves, changes are not saved
+	 *
+	 * @param compoundSlave
+	 * @return what is left to do about the compound
+	 */
+	static Result reconcile(CompoundSlave compoundSlave) {
+		Result result = new Result(compoundSlave);
+		CompoundCloud cloud = compoundSlave.getCloud();
+
+		for (Map.Entry<String, List<String>> missing: compoundSlave.getMissingSlaves().entrySet()) {
+			for (String name: missing.getValue()) {
+				if (CompoundSlave.isRoot(missing.getKey())) {
+					logger.warning("Root sub-slave " + name + " of " + compoundSlave.getNodeName() + " is gone, terminating the compound");
+					result.rootless = true;
+				} else if (cloud != null && cloud.isReplaceDeadSlaves()) {
+					logger.info("Sub-slave " + name + " of " + compoundSlave.getNodeName() + " is gone, replacing it");
+					result.replacements.add(new String[] {missing.getKey(), name});
+				} else {
+					logger.warning("Sub-slave " + name + " of " + compoundSlave.getNodeName() + " is gone, dropping it");
+					compoundSlave.forgetSlave(missing.getKey(), name);
+					result.changed = true;
+				}
+			}
+		}
+
+		for (List<Slave> slaves: compoundSlave.getAllSlaves().values()) {
+			for (Slave slave: slaves) {
+				slave.setRetentionStrategy(compoundSlave.getRetentionStrategy());
+				CompoundSlave.enslave(slave, compoundSlave);
+				result.enslaved++;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Terminates rootless compounds and provisions replacements of the missing sub-slaves, all in parallel, then saves once
+	 *
+	 * @param results
+	 */
+	static void finish(List<Result> results) {
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+
+		for (final Result result: results) {
+			final CompoundSlave compoundSlave = result.compoundSlave;
+
+			if (result.isRootless()) {
+				futures.add(Computer.threadPoolForRemoting.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						compoundSlave.terminate();
+						return false;
+					}
+				}));
+				continue;
+			}
+
+			for (final String[] replacement: result.getReplacements()) {
+				futures.add(Computer.threadPoolForRemoting.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						CompoundCloud cloud = compoundSlave.getCloud();
+						if (cloud == null) {
+							throw new IOException("Cloud of " + compoundSlave.getNodeName() + " is gone");
+						}
+
+						compoundSlave.putSlave(replacement[0], replacement[1], cloud.provisionReplacement(compoundSlave, replacement[0]));
+						return true;
+					}
+				}));
+			}
+		}
+
+		boolean changed = false;
+
+		for (Future<Boolean> future: futures) {
+			try {
+				changed |= future.get();
+			} catch (ExecutionException e) {
+				logger.log(Level.WARNING, "Failed to restore compound slave", e.getCause());
+			} catch (InterruptedException e) {
+				logger.log(Level.WARNING, "Interrupted while restoring compound slaves", e);
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		if (changed) {
+			try {
+				Jenkins.getInstance().save();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to save restored compound slaves", e);
+			}
+		}
+	}
+}
@@ -6,8 +6,8 @@ import hudson.model.ComputerSet;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
 import hudson.model.Slave;
-import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.RetentionStrategy.Always;
 import hudson.util.FormValidation;
@@ -17,10 +17,14 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -46,8 +50,46 @@ import org.kohsuke.stapler.StaplerResponse;
  */
 public class CompoundSlave extends AbstractCloudSlave {
 
-	private final LinkedHashMap<String, List<Slave>> slaves = new LinkedHashMap<String, List<Slave>>();
+	/**
+	 * Names of the sub-slaves by roles. Only names are persisted, actual nodes are looked up in Jenkins
+	 */
+	private LinkedHashMap<String, List<String>> slaveNames;
+
+	/**
+	 * Full copies of sub-slaves, stored by the older versions. Converted to {@link #slaveNames} by {@link #readResolve()} on load.
+	 */
+	@Deprecated
+	private LinkedHashMap<String, List<Slave>> slaves;
+	@Deprecated
 	private Slave self;
+	/**
+	 * Number of sub-slaves of each role that should be online before the compound goes online
+	 */
+	private Map<String, Integer> quorums;
+	/**
+	 * Name of the {@link CompoundCloud} this compound was provisioned by, if any
+	 */
+	private String cloudName;
+	/**
+	 * Label of the {@link CompoundCloud.ConfigurationEntry} this compound was provisioned by, if any
+	 */
+	private String configurationLabel;
+	/**
+	 * When this compound was provisioned ahead of demand by {@link CompoundDemandPredictor}, 0 if it was not or if it got a build already
+	 */
+	private volatile long speculatedAt;
+	/**
+	 * Timeline of provisioning and launch of this compound, not persisted
+	 */
+	private transient volatile ProvisioningTrace trace;
+	/**
+	 * Resolved sub-slaves, rebuilt lazily after membership changes
+	 */
+	private transient volatile CompoundTopology topology;
+	/**
+	 * Positions of {@link CompoundBuilder.SelectionPolicy#ROUND_ROBIN} within roles, not persisted
+	 */
+	private transient volatile ConcurrentMap<String, AtomicInteger> cursors;
 
 	private static final long serialVersionUID = 1L;
 	private static final String ROOT = "ROOT";
@@ -127,8 +169,6 @@ public class CompoundSlave extends AbstractCloudSlave {
 
 		Jenkins jenkins = Jenkins.getInstance();
 
-		self = (Slave) jenkins.getNode(slaveNames.get(ROOT).get(0));
-
 		for(String slaveRole: slaveNames.keySet()) {
 			for(String slaveName: slaveNames.get(slaveRole)) {
 
@@ -144,35 +184,117 @@ public class CompoundSlave extends AbstractCloudSlave {
 				enslave((Slave) node, this);
 				((Slave) node).setRetentionStrategy(getRetentionStrategy());
 
-				getSlaves(slaveRole).add((Slave) node);
+				addName(slaveRole, slaveName);
 			}
 		}
+
+		invalidateTopology();
 	}
 
 	private CompoundSlave(String name, String description, String remoteFS, String label) throws FormException, IOException {
 		super(name, description, remoteFS, 1, Mode.EXCLUSIVE, label, null, new Always(), new ArrayList<NodeProperty<Slave>>());
 		setLauncher(new CompoundLauncher(this));
-		self = this;
 	}
 
-	public List<Slave> getSlaves(String role) {
-		synchronized(slaves) {
-			if (slaves.get(role) == null) {
-				slaves.put(role, new ArrayList<Slave>());
+	/**
+	 * Converts full copies of sub-slaves stored by the older versions to references
+	 */
+	@Override
+	protected Object readResolve() {
+		synchronized (this) {
+			if (slaveNames == null) {
+				slaveNames = new LinkedHashMap<String, List<String>>();
+
+				if (slaves != null) {
+					for (Map.Entry<String, List<Slave>> entry: slaves.entrySet()) {
+						List<String> names = new ArrayList<String>();
+						for (Slave slave: entry.getValue()) {
+							names.add(slave.getNodeName());
+						}
+						slaveNames.put(entry.getKey(), names);
+					}
+
+					logger.info("Converted sub-slaves of " + getNodeName() + " to references: " + slaveNames);
+				}
 			}
 
-			return slaves.get(role);
+			slaves = null;
+			self = null;
+		}
+
+		return super.readResolve();
+	}
+
+	private synchronized LinkedHashMap<String, List<String>> getSlaveNames() {
+		if (slaveNames == null) {
+			slaveNames = new LinkedHashMap<String, List<String>>();
+		}
+
+		return slaveNames;
+	}
+
+	/**
+	 * @return names of the sub-slaves of the given role, an empty list that is not persisted if there are none
+	 */
+	private synchronized List<String> getNames(String role) {
+		List<String> names = getSlaveNames().get(role);
+
+		return names == null ? Collections.<String>emptyList() : names;
+	}
+
+	private synchronized void addName(String role, String name) {
+		if (getSlaveNames().get(role) == null) {
+			getSlaveNames().put(role, new ArrayList<String>());
+		}
+
+		getSlaveNames().get(role).add(name);
+	}
+
+	/**
+	 * @return snapshot of the sub-slaves that can be found in Jenkins
+	 */
+	public CompoundTopology getTopology() {
+		CompoundTopology result = topology;
+
+		if (result == null) {
+			synchronized (this) {
+				result = topology;
+
+				if (result == null) {
+					result = CompoundTopology.resolve(getSlaveNames(), ROOT);
+					topology = result;
+				}
+			}
 		}
+
+		return result;
+	}
+
+	/**
+	 * Makes the next {@link #getTopology()} look the sub-slaves up again.
+	 *
+	 * Holds the same monitor as resolving does, so an invalidation waits for a resolution in progress and then drops its result.
+	 */
+	synchronized void invalidateTopology() {
+		topology = null;
 	}
 
-	public List<Entry> getEntries() {
+	/**
+	 * @param role
+	 * @return sub-slaves of the given role, that can be found in Jenkins
+	 */
+	public List<Slave> getSlaves(String role) {
+		return getTopology().get(role);
+	}
+
+	public synchronized List<Entry> getEntries() {
 		List<Entry> result = new ArrayList<CompoundSlave.Entry>();
 
-		for (final java.util.Map.Entry<String, List<Slave>>  mapEntry: slaves.entrySet()) {
-			result.addAll(FunctionalPrimitives.map(mapEntry.getValue(), new Functor<Slave, Entry>() {
+		for (final java.util.Map.Entry<String, List<String>>  mapEntry: getSlaveNames().entrySet()) {
+			result.addAll(FunctionalPrimitives.map(mapEntry.getValue(), new Functor<String, Entry>() {
 				@Override
-				public Entry execute(Slave value) {
-					return new Entry(value.getNodeName(), mapEntry.getKey());
+				public Entry execute(String value) {
+					return new Entry(value, mapEntry.getKey());
 				}
 			}));
 		}
@@ -180,8 +302,204 @@ public class CompoundSlave extends AbstractCloudSlave {
 		return result;
 	}
 
-	public int getSlaveNumber() {
-		return slaves.size();
+	/**
+	 * @param slave
+	 * @return role of the given sub-slave or null if it's not a part of this compound
+	 */
+	public String getRole(Slave slave) {
+		return getTopology().getRole(slave.getNodeName());
+	}
+
+	/**
+	 * @param role
+	 * @return number of the sub-slaves with given role needed for the compound to go online, all of them by default
+	 */
+	public synchronized int getQuorum(String role) {
+		if (quorums != null && quorums.containsKey(role)) {
+			return quorums.get(role);
+		}
+		return getNames(role).size();
+	}
+
+	public synchronized void setQuorum(String role, int quorum) {
+		if (quorums == null) {
+			quorums = new HashMap<String, Integer>();
+		}
+		quorums.put(role, quorum);
+	}
+
+	/**
+	 * Remembers the cloud configuration this compound was provisioned by
+	 */
+	public void setProvisionedBy(CompoundCloud cloud, CompoundCloud.ConfigurationEntry entry) {
+		this.cloudName = cloud.name;
+		this.configurationLabel = entry.getLabelExpression();
+	}
+
+	/**
+	 * @return the {@link CompoundCloud} this compound was provisioned by or null if it was created manually
+	 */
+	public CompoundCloud getCloud() {
+		if (cloudName == null) {
+			return null;
+		}
+
+		Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
+
+		return cloud instanceof CompoundCloud ? (CompoundCloud) cloud : null;
+	}
+
+	public String getConfigurationLabel() {
+		return configurationLabel;
+	}
+
+	public long getSpeculatedAt() {
+		return speculatedAt;
+	}
+
+	void setSpeculatedAt(long speculatedAt) {
+		this.speculatedAt = speculatedAt;
+	}
+
+	/**
+	 * @param role
+	 * @return next position of round-robin over the sub-slaves of the given role, starting with 0
+	 */
+	int nextCursor(String role) {
+		if (cursors == null) {
+			synchronized (this) {
+				if (cursors == null) {
+					cursors = new ConcurrentHashMap<String, AtomicInteger>();
+				}
+			}
+		}
+
+		AtomicInteger cursor = cursors.get(role);
+
+		if (cursor == null) {
+			AtomicInteger fresh = new AtomicInteger();
+			cursor = cursors.putIfAbsent(role, fresh);
+			if (cursor == null) {
+				cursor = fresh;
+			}
+		}
+
+		return cursor.getAndIncrement() & Integer.MAX_VALUE;
+	}
+
+	void setTrace(ProvisioningTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * @return timeline of provisioning and launch of this compound, a launch-only one if it was not provisioned since Jenkins start
+	 */
+	public ProvisioningTrace getTrace() {
+		if (trace == null) {
+			synchronized (this) {
+				if (trace == null) {
+					trace = new ProvisioningTrace();
+				}
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Puts a new sub-slave in place of the old one
+	 *
+	 * @param role
+	 * @param old
+	 * @param replacement
+	 * @throws IOException
+	 */
+	public void replaceSlave(String role, Slave old, Slave replacement) throws IOException {
+		replaceSlave(role, old.getNodeName(), replacement);
+	}
+
+	/**
+	 * Puts a new sub-slave in place of the old one, that may be not known to Jenkins anymore
+	 *
+	 * @param role
+	 * @param oldName
+	 * @param replacement
+	 * @throws IOException
+	 */
+	public void replaceSlave(String role, String oldName, Slave replacement) throws IOException {
+		putSlave(role, oldName, replacement);
+
+		Jenkins.getInstance().save();
+	}
+
+	/**
+	 * Same as {@link #replaceSlave(String, String, Slave)}, but leaves saving to the caller
+	 */
+	synchronized void putSlave(String role, String oldName, Slave replacement) {
+		List<String> names = getNames(role);
+		int index = names.indexOf(oldName);
+
+		if (index < 0) {
+			throw new IllegalArgumentException(oldName + " is not a " + role + " sub-slave of " + getNodeName());
+		}
+
+		replacement.setRetentionStrategy(getRetentionStrategy());
+		names.set(index, replacement.getNodeName());
+		invalidateTopology();
+	}
+
+	/**
+	 * Finds the sub-slaves that can't be found in Jenkins anymore
+	 *
+	 * @return names of the missing sub-slaves by roles
+	 */
+	public synchronized Map<String, List<String>> getMissingSlaves() {
+		Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (Map.Entry<String, List<String>> entry: getSlaveNames().entrySet()) {
+			for (String name: entry.getValue()) {
+				if (!(jenkins.getNode(name) instanceof Slave)) {
+					if (result.get(entry.getKey()) == null) {
+						result.put(entry.getKey(), new ArrayList<String>());
+					}
+					result.get(entry.getKey()).add(name);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Forgets the given sub-slave
+	 *
+	 * @param role
+	 * @param name
+	 * @throws IOException
+	 */
+	public void dropSlave(String role, String name) throws IOException {
+		forgetSlave(role, name);
+
+		Jenkins.getInstance().save();
+	}
+
+	/**
+	 * Same as {@link #dropSlave(String, String)}, but leaves saving to the caller
+	 */
+	synchronized void forgetSlave(String role, String name) {
+		getNames(role).remove(name);
+		invalidateTopology();
+	}
+
+	/**
+	 * @return if the given role is the one of the sub-slave the compound runs its own executor on
+	 */
+	static boolean isRoot(String role) {
+		return ROOT.equals(role);
+	}
+
+	public synchronized int getSlaveNumber() {
+		return getSlaveNames().size();
 	}
 
 	@Extension
@@ -193,11 +511,27 @@ public class CompoundSlave extends AbstractCloudSlave {
 		}
 
 		private List<String> roles = new ArrayList<String>(Arrays.asList(ROOT));
+		/**
+		 * Whether to pre-warm classloading on sub-slave channels at launch, see {@link ChannelPrewarm}
+		 */
+		private boolean prewarm;
+		/**
+		 * Directory on sub-slave hosts to keep {@link WorkspaceTemplate}s in, under the slave root if empty
+		 */
+		private String templateCache;
 
 		public List<String> getRoles() {
 			return new ArrayList<String>(roles);
 		}
 
+		public boolean isPrewarm() {
+			return prewarm;
+		}
+
+		public String getTemplateCache() {
+			return templateCache;
+		}
+
 		@Override
 		public void handleNewNodePage(ComputerSet computerSet, String name, StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
 			super.handleNewNodePage(computerSet, name, req, rsp);
@@ -259,6 +593,8 @@ public class CompoundSlave extends AbstractCloudSlave {
 				// something unexpected - restore old roles
 				roles.addAll(oldRoles);
 			}
+			prewarm = formData.optBoolean("prewarm");
+			templateCache = formData.optString("templateCache");
 			save();
 			return super.configure(req,formData);
 		}
@@ -273,16 +609,21 @@ public class CompoundSlave extends AbstractCloudSlave {
 	}
 
 	public Map<String, List<Slave>> getAllSlaves() {
-		return new HashMap<String, List<Slave>>(slaves);
+		return getTopology().getByRole();
 	}
 
+	/**
+	 * @return the ROOT sub-slave, or this compound itself if there is none
+	 */
 	public Slave getSelf() {
-		return self;
+		Slave root = getTopology().getRoot();
+
+		return root == null ? this : root;
 	}
 
 	@Override
-	public AbstractCloudComputer<CompoundSlave> createComputer() {
-		return new AbstractCloudComputer<CompoundSlave>(this);
+	public CompoundComputer createComputer() {
+		return new CompoundComputer(this);
 	}
 
 	/**
@@ -290,44 +631,48 @@ public class CompoundSlave extends AbstractCloudSlave {
 	 */
 	@Override
 	protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-		for (List<Slave> slaves: getAllSlaves().values()) {
-			for (Slave slave: slaves) {
-				free(slave);
-				if (slave instanceof AbstractCloudSlave) {
-					try {
-						listener.getLogger().println("Terminating sub-slave " + slave.getDisplayName());
-						((AbstractCloudSlave)slave).terminate();
-					} catch (IOException e) {
-						e.printStackTrace(listener.fatalError("Terminating slave {0} failed", slave.getDisplayName()));
-					} catch (InterruptedException e) {
-						e.printStackTrace(listener.fatalError("Terminating slave {0} failed", slave.getDisplayName()));
-					}
+		CompoundCloud cloud = getCloud();
+		if (cloud != null) {
+			CompoundCloud.ConfigurationEntry entry = cloud.getConfigurationFor(this);
+			if (entry != null) {
+				entry.getCounters().terminated();
+			}
+		}
+
+		for (Slave slave: getTopology().getAll()) {
+			free(slave);
+			if (slave instanceof AbstractCloudSlave) {
+				try {
+					listener.getLogger().println("Terminating sub-slave " + slave.getDisplayName());
+					((AbstractCloudSlave)slave).terminate();
+				} catch (IOException e) {
+					e.printStackTrace(listener.fatalError("Terminating slave {0} failed", slave.getDisplayName()));
+				} catch (InterruptedException e) {
+					e.printStackTrace(listener.fatalError("Terminating slave {0} failed", slave.getDisplayName()));
 				}
 			}
 		}
 	}
 
+	/**
+	 * Gives the sub-slave back to the queue
+	 */
 	public static void free(Slave slave) {
-		try {
-			new ComputerAccessHack(slave.getComputer()).freeExecutors();
-		} catch (IllegalArgumentException e) {
-			logger.info("Failed to re-enable slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-		} catch (IllegalAccessException e) {
-			logger.info("Failed to re-enable slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
+		SubSlaveReservation.release(slave.getNodeName());
+
+		if (slave.getComputer() != null) {
+			slave.getComputer().setAcceptingTasks(true);
 		}
-		slave.getComputer().setAcceptingTasks(true);
 	}
 
+	/**
+	 * Keeps the queue off the sub-slave while it is a part of the compound, see {@link SubSlaveReservation}
+	 */
 	public static void enslave(Slave slave, CompoundSlave master) {
-		slave.getComputer().setAcceptingTasks(false);
-		try {
-			new ComputerAccessHack(slave.getComputer()).occupyExecutors(master);
-		} catch (IllegalArgumentException e) {
-			logger.info("Failed to fully conquer sub-slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-		} catch (IllegalAccessException e) {
-			logger.info("Failed to fully conquer sub-slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-		} catch (IOException e) {
-			logger.info("Failed to fully conquer sub-slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
+		SubSlaveReservation.reserve(slave.getNodeName(), master.getNodeName());
+
+		if (slave.getComputer() != null) {
+			slave.getComputer().setAcceptingTasks(false);
 		}
 	}
 }
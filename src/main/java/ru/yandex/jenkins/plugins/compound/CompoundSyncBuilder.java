@@ -0,0 +1,346 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.ListBoxModel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Builder to make workspaces of the given role identical to the ROOT workspace within a {@link CompoundSlave}.
+ *
+ * Every workspace is hashed on its own sub-slave, and only changed files and deletions are sent over, via {@link DirectTransfer}.
+ * Digests of files with unchanged modification time and size are reused from the previous syncs.
+ *
+ * @author pupssman
+ */
+public class CompoundSyncBuilder extends Builder {
+	private final String role;
+	private final String excludes;
+
+	@DataBoundConstructor
+	public CompoundSyncBuilder(String role, String excludes) {
+		this.role = role;
+		this.excludes = excludes;
+	}
+
+	private static void log(BuildListener listener, String message) {
+		listener.getLogger().println("[CompoundSyncBuilder] " + message);
+	}
+
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+		Node runningNode = Executor.currentExecutor().getOwner().getNode();
+
+		if (!(runningNode instanceof CompoundSlave)) {
+			log(listener, "Node " + runningNode.getDisplayName() + " is not a compound node, nothing to sync.");
+			return false;
+		}
+
+		CompoundSlave compoundSlave = (CompoundSlave) runningNode;
+
+		try {
+			CompoundTopology topology = compoundSlave.getTopology();
+			FilePath source = build.getWorkspace();
+			List<FilePath> targets = CompoundTransferBuilder.getWorkspaces(build, listener, compoundSlave, topology, role, Integer.MAX_VALUE);
+			int expectedTargets = CompoundTransferBuilder.countWorkspaces(topology, role);
+
+			log(listener, "Hashing ROOT workspace and " + targets.size() + " workspaces of role " + role);
+
+			Future<Map<String, String>> sourceManifest = source.actAsync(new Manifest(excludes));
+			List<Future<Map<String, String>>> targetManifests = new ArrayList<Future<Map<String, String>>>();
+
+			for (FilePath target: targets) {
+				targetManifests.add(target.actAsync(new Manifest(excludes)));
+			}
+
+			Map<String, String> expected = sourceManifest.get();
+
+			// targets with identical differences get the same stream
+			Map<Difference, List<FilePath>> differences = new LinkedHashMap<Difference, List<FilePath>>();
+
+			for (int i = 0; i < targets.size(); i++) {
+				Difference difference = new Difference(expected, targetManifests.get(i).get());
+
+				if (differences.get(difference) == null) {
+					differences.put(difference, new ArrayList<FilePath>());
+				}
+
+				differences.get(difference).add(targets.get(i));
+			}
+
+			for (Map.Entry<Difference, List<FilePath>> entry: differences.entrySet()) {
+				Difference difference = entry.getKey();
+				List<FilePath> group = entry.getValue();
+
+				log(listener, group.size() + " workspaces need " + difference.changed.size() + " files updated and " + difference.deleted.size() + " deleted");
+
+				if (!difference.deleted.isEmpty()) {
+					List<Future<Void>> deletions = new ArrayList<Future<Void>>();
+
+					for (FilePath target: group) {
+						deletions.add(target.actAsync(new Delete(new ArrayList<String>(difference.deleted))));
+					}
+
+					for (Future<Void> deletion: deletions) {
+						deletion.get();
+					}
+				}
+
+				if (!difference.changed.isEmpty()) {
+					log(listener, "Sent " + DirectTransfer.transfer(source, new FileListScanner(new ArrayList<String>(difference.changed)), group, listener));
+				}
+			}
+
+			if (targets.size() < expectedTargets) {
+				log(listener, (expectedTargets - targets.size()) + " sub-slaves of role " + role + " were offline and were not synced.");
+				return false;
+			}
+
+			return true;
+		} catch (ExecutionException e) {
+			e.printStackTrace(listener.fatalError("Hashing workspace failed"));
+			return false;
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Sync failed"));
+			return false;
+		}
+	}
+
+	/**
+	 * Files to send and to delete to make some workspace match the expected one
+	 */
+	private static final class Difference {
+		private final TreeSet<String> changed = new TreeSet<String>();
+		private final TreeSet<String> deleted = new TreeSet<String>();
+
+		Difference(Map<String, String> expected, Map<String, String> actual) {
+			for (Map.Entry<String, String> entry: expected.entrySet()) {
+				if (!entry.getValue().equals(actual.get(entry.getKey()))) {
+					changed.add(entry.getKey());
+				}
+			}
+
+			for (String path: actual.keySet()) {
+				if (!expected.containsKey(path)) {
+					deleted.add(path);
+				}
+			}
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Difference)) {
+				return false;
+			}
+			Difference other = (Difference) obj;
+			return changed.equals(other.changed) && deleted.equals(other.deleted);
+		}
+
+		@Override
+		public int hashCode() {
+			return changed.hashCode() * 31 + deleted.hashCode();
+		}
+	}
+
+	/**
+	 * MD5 digest of a file along with the modification time and size it was computed for
+	 */
+	private static final class Digest {
+		private final long modified;
+		private final long length;
+		private final String md5;
+
+		Digest(long modified, long length, String md5) {
+			this.modified = modified;
+			this.length = length;
+			this.md5 = md5;
+		}
+	}
+
+	/**
+	 * Computes relative path -> MD5 digest map of a directory on the side it resides.
+	 *
+	 * Digests are kept on that side between syncs and reused while the modification time and size of a file stay the same.
+	 */
+	private static final class Manifest implements FileCallable<Map<String, String>> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Files modified this recently are hashed every time, as a change within the timestamp granularity keeps the modification time
+		 */
+		private static final long SETTLE_TIME = 2000;
+
+		/**
+		 * Digests by absolute file path, lives on the side of the hashed directories
+		 */
+		private static final Map<String, Digest> digests = new ConcurrentHashMap<String, Digest>();
+
+		private final String excludes;
+
+		Manifest(String excludes) {
+			this.excludes = excludes;
+		}
+
+		@Override
+		public Map<String, String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			final Map<String, String> result = new HashMap<String, String>();
+
+			if (!f.isDirectory()) {
+				return result;
+			}
+
+			final long settled = System.currentTimeMillis() - SETTLE_TIME;
+			final Set<String> seen = new HashSet<String>();
+
+			new DirScanner.Glob("**/*", Util.fixEmpty(excludes)).scan(f, new FileVisitor() {
+				@Override
+				public void visit(File file, String relativePath) throws IOException {
+					if (file.isFile()) {
+						String path = file.getAbsolutePath();
+						long modified = file.lastModified();
+						long length = file.length();
+						Digest digest = digests.get(path);
+
+						if (digest == null || digest.modified != modified || digest.length != length || modified > settled) {
+							FileInputStream in = new FileInputStream(file);
+							try {
+								digest = new Digest(modified, length, Util.getDigestOf(in));
+							} finally {
+								in.close();
+							}
+
+							if (modified <= settled) {
+								digests.put(path, digest);
+							}
+						}
+
+						seen.add(path);
+						result.put(relativePath, digest.md5);
+					}
+				}
+			});
+
+			// forget the files gone from this directory
+			String prefix = f.getAbsolutePath() + File.separator;
+			for (String path: digests.keySet()) {
+				if (path.startsWith(prefix) && !seen.contains(path)) {
+					digests.remove(path);
+				}
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Deletes given relative paths on the side the directory resides
+	 */
+	private static final class Delete implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+
+		Delete(List<String> paths) {
+			this.paths = paths;
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			for (String path: paths) {
+				File file = new File(f, path);
+
+				if (file.exists() && !file.delete()) {
+					throw new IOException("Failed to delete " + file);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Scans exactly the given relative paths
+	 */
+	static final class FileListScanner extends DirScanner {
+		private static final long serialVersionUID = 1L;
+		private final List<String> paths;
+
+		FileListScanner(List<String> paths) {
+			this.paths = paths;
+		}
+
+		@Override
+		public void scan(File dir, FileVisitor visitor) throws IOException {
+			for (String path: paths) {
+				File file = new File(dir, path);
+
+				if (file.exists()) {
+					visitor.visit(file, path);
+				}
+			}
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+			return true;
+		}
+
+		public ListBoxModel doFillRoleItems() {
+			ListBoxModel model = new ListBoxModel();
+
+			for (String role: ((CompoundSlave.DescriptorImpl) Jenkins.getInstance().getDescriptor(CompoundSlave.class)).getRoles()) {
+				model.add(role, role);
+			}
+
+			return model;
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Sync ROOT workspace to sub-nodes";
+		}
+	}
+
+	public String getRole() {
+		return role;
+	}
+
+	public String getExcludes() {
+		return excludes;
+	}
+}
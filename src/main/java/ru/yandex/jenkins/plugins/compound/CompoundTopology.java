@@ -0,0 +1,207 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.ComputerListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Immutable snapshot of the sub-slaves of a {@link CompoundSlave}, indexed by role and by position within role.
+ *
+ * Built once per membership change and published by {@link CompoundSlave#getTopology()},
+ * so readers on the build path neither lock nor allocate.
+ *
+ * @author pupssman
+ */
+public final class CompoundTopology {
+	private static final Logger logger = Logger.getLogger(CompoundTopology.class.getCanonicalName());
+
+	private final Map<String, List<Slave>> byRole;
+	private final Map<String, List<Slave>> positions;
+	private final Map<String, List<String>> names;
+	private final List<Slave> all;
+	private final List<String> missing;
+	private final Map<String, String> roles;
+	private final Slave root;
+
+	private CompoundTopology(Map<String, List<Slave>> byRole, Map<String, List<Slave>> positions, Map<String, List<String>> names, List<Slave> all, List<String> missing,
+			Map<String, String> roles, Slave root) {
+		this.byRole = byRole;
+		this.positions = positions;
+		this.names = names;
+		this.all = all;
+		this.missing = missing;
+		this.roles = roles;
+		this.root = root;
+	}
+
+	/**
+	 * Looks up the sub-slaves in Jenkins.
+	 *
+	 * The ones that can't be found are left out of the lists by role, but keep their positions, see {@link #get(String, int)}.
+	 *
+	 * @param names of the sub-slaves by roles
+	 * @param rootRole
+	 */
+	static CompoundTopology resolve(Map<String, List<String>> names, String rootRole) {
+		return resolve(names, rootRole, new Lookup() {
+			@Override
+			public Node getNode(String name) {
+				return Jenkins.getInstance().getNode(name);
+			}
+		});
+	}
+
+	/**
+	 * Finds nodes by names
+	 */
+	static interface Lookup {
+		Node getNode(String name);
+	}
+
+	static CompoundTopology resolve(Map<String, List<String>> names, String rootRole, Lookup lookup) {
+		Map<String, List<Slave>> byRole = new LinkedHashMap<String, List<Slave>>();
+		Map<String, List<Slave>> positions = new LinkedHashMap<String, List<Slave>>();
+		Map<String, List<String>> resolvedNames = new LinkedHashMap<String, List<String>>();
+		List<Slave> all = new ArrayList<Slave>();
+		List<String> missing = new ArrayList<String>();
+		Map<String, String> roles = new HashMap<String, String>();
+
+		for (Map.Entry<String, List<String>> entry: names.entrySet()) {
+			List<Slave> slaves = new ArrayList<Slave>(entry.getValue().size());
+			List<Slave> slots = new ArrayList<Slave>(entry.getValue().size());
+			List<String> slaveNames = new ArrayList<String>(entry.getValue().size());
+
+			for (String name: entry.getValue()) {
+				Node node = lookup.getNode(name);
+
+				if (node instanceof Slave) {
+					slaves.add((Slave) node);
+					slots.add((Slave) node);
+					slaveNames.add(name);
+					roles.put(name, entry.getKey());
+				} else {
+					logger.warning("Sub-slave " + name + " is not found in Jenkins");
+					slots.add(null);
+					missing.add(name);
+				}
+			}
+
+			byRole.put(entry.getKey(), Collections.unmodifiableList(slaves));
+			positions.put(entry.getKey(), Collections.unmodifiableList(slots));
+			resolvedNames.put(entry.getKey(), Collections.unmodifiableList(slaveNames));
+			all.addAll(slaves);
+		}
+
+		List<Slave> roots = positions.get(rootRole);
+
+		return new CompoundTopology(Collections.unmodifiableMap(byRole), Collections.unmodifiableMap(positions), Collections.unmodifiableMap(resolvedNames),
+				Collections.unmodifiableList(all), Collections.unmodifiableList(missing), roles, roots == null || roots.isEmpty() ? null : roots.get(0));
+	}
+
+	/**
+	 * @return sub-slaves by roles, in the order they were configured
+	 */
+	public Map<String, List<Slave>> getByRole() {
+		return byRole;
+	}
+
+	/**
+	 * @return names of the resolved sub-slaves by roles, equal for the topologies with the same members
+	 */
+	public Map<String, List<String>> getNames() {
+		return names;
+	}
+
+	public Set<String> getRoles() {
+		return byRole.keySet();
+	}
+
+	/**
+	 * @return all the sub-slaves
+	 */
+	public List<Slave> getAll() {
+		return all;
+	}
+
+	/**
+	 * @param role
+	 * @return sub-slaves of the given role, empty if there are none
+	 */
+	public List<Slave> get(String role) {
+		List<Slave> result = byRole.get(role);
+
+		return result == null ? Collections.<Slave>emptyList() : result;
+	}
+
+	/**
+	 * @param role
+	 * @param index zero-based position within the role, as configured
+	 * @return the sub-slave or null if there is no such or it can't be found in Jenkins
+	 */
+	public Slave get(String role, int index) {
+		List<Slave> slots = getPositions(role);
+
+		return index >= 0 && index < slots.size() ? slots.get(index) : null;
+	}
+
+	/**
+	 * @param role
+	 * @return sub-slaves of the given role in their configured positions, with nulls for the ones that can't be found in Jenkins
+	 */
+	public List<Slave> getPositions(String role) {
+		List<Slave> result = positions.get(role);
+
+		return result == null ? Collections.<Slave>emptyList() : result;
+	}
+
+	/**
+	 * @return names of the sub-slaves that can't be found in Jenkins
+	 */
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	/**
+	 * @param nodeName
+	 * @return role of the given sub-slave or null if it's not a part of the compound
+	 */
+	public String getRole(String nodeName) {
+		return roles.get(nodeName);
+	}
+
+	/**
+	 * @return the ROOT sub-slave or null if there is none
+	 */
+	public Slave getRoot() {
+		return root;
+	}
+
+	/**
+	 * Drops topologies of all the compounds when nodes change, since sub-slaves may be replaced by new instances
+	 *
+	 * @author pupssman
+	 */
+	@Extension
+	public static class Invalidator extends ComputerListener {
+		@Override
+		public void onConfigurationChange() {
+			for (Node node: Jenkins.getInstance().getNodes()) {
+				if (node instanceof CompoundSlave) {
+					((CompoundSlave) node).invalidateTopology();
+				}
+			}
+		}
+	}
+}
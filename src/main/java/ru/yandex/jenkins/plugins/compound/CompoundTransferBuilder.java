@@ -0,0 +1,221 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DirScanner;
+import hudson.util.ListBoxModel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Builder to copy files from the workspace of one role to workspaces of another role within a {@link CompoundSlave}.
+ *
+ * Files are streamed directly between sub-slaves with {@link DirectTransfer}.
+ *
+ * @author pupssman
+ */
+public class CompoundTransferBuilder extends Builder {
+	private final String sourceRole;
+	private final String targetRole;
+	private final String includes;
+	private final String excludes;
+
+	@DataBoundConstructor
+	public CompoundTransferBuilder(String sourceRole, String targetRole, String includes, String excludes) {
+		this.sourceRole = sourceRole;
+		this.targetRole = targetRole;
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	private static void log(BuildListener listener, String message) {
+		listener.getLogger().println("[CompoundTransferBuilder] " + message);
+	}
+
+	/**
+	 * Waits for the given sub-slaves that are still launching, the ones that are not online are reported and left out.
+	 *
+	 * A sub-slave without a channel must not be used, as its {@link FilePath}s would point to the master.
+	 *
+	 * @param compoundSlave
+	 * @param slaves
+	 * @param limit how many online sub-slaves are needed at most
+	 * @param listener
+	 * @return online sub-slaves, in the given order
+	 * @throws InterruptedException
+	 */
+	static List<Slave> getOnlineSlaves(CompoundSlave compoundSlave, List<Slave> slaves, int limit, BuildListener listener) throws InterruptedException {
+		List<Slave> result = new ArrayList<Slave>();
+
+		for (Slave slave: slaves) {
+			if (result.size() >= limit) {
+				break;
+			}
+
+			if (compoundSlave.getLauncher() instanceof CompoundLauncher && !((CompoundLauncher) compoundSlave.getLauncher()).waitFor(slave)) {
+				log(listener, "Sub-slave " + slave.getDisplayName() + " failed to come online, skipping it.");
+			} else if (slave.getChannel() == null) {
+				log(listener, "Sub-slave " + slave.getDisplayName() + " is offline, skipping it.");
+			} else {
+				result.add(slave);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Finds (and prepares, if needed) workspaces for the online sub-slaves of the given role
+	 *
+	 * @param limit how many workspaces are needed at most, sub-slaves past it are not prepared
+	 */
+	static List<FilePath> getWorkspaces(AbstractBuild<?, ?> build, BuildListener listener, CompoundSlave compoundSlave, CompoundTopology topology, String role, int limit)
+			throws IOException, InterruptedException {
+		List<FilePath> result = new ArrayList<FilePath>();
+
+		if (role.equals("ROOT")) {
+			result.add(build.getWorkspace());
+		} else {
+			List<SubSlavePreparation> preparations = new ArrayList<SubSlavePreparation>();
+
+			try {
+				for (Slave slave: getOnlineSlaves(compoundSlave, topology.get(role), limit, listener)) {
+					preparations.add(SubSlavePreparation.start(build, slave, null));
+				}
+
+				while (!preparations.isEmpty()) {
+					SubSlavePreparation preparation = preparations.remove(0);
+					result.add(preparation.getSlave().createPath(CompoundBuilder.prepareEnvironment(build, listener, preparation)));
+				}
+			} finally {
+				// preparations not finished, e.g. because one of them threw
+				for (SubSlavePreparation preparation: preparations) {
+					preparation.abandon();
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return how many workspaces of the role there would be if all the sub-slaves were online
+	 */
+	static int countWorkspaces(CompoundTopology topology, String role) {
+		return role.equals("ROOT") ? 1 : topology.get(role).size();
+	}
+
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+		Node runningNode = Executor.currentExecutor().getOwner().getNode();
+
+		if (!(runningNode instanceof CompoundSlave)) {
+			log(listener, "Node " + runningNode.getDisplayName() + " is not a compound node, nothing to transfer.");
+			return false;
+		}
+
+		CompoundSlave compoundSlave = (CompoundSlave) runningNode;
+
+		try {
+			CompoundTopology topology = compoundSlave.getTopology();
+
+			// only one source is used, so only one gets prepared
+			List<FilePath> sources = getWorkspaces(build, listener, compoundSlave, topology, sourceRole, 1);
+
+			if (sources.isEmpty()) {
+				log(listener, "No online sub-slaves with role " + sourceRole + " found.");
+				return false;
+			}
+
+			List<FilePath> targets = getWorkspaces(build, listener, compoundSlave, topology, targetRole, Integer.MAX_VALUE);
+			int expected = countWorkspaces(topology, targetRole);
+
+			if (targets.isEmpty()) {
+				log(listener, "No online sub-slaves with role " + targetRole + " found.");
+				return false;
+			}
+
+			log(listener, "Transferring " + includes + " from " + sourceRole + " to " + targets.size() + " sub-slaves of role " + targetRole);
+
+			DirectTransfer.Result result = DirectTransfer.transfer(sources.get(0), new DirScanner.Glob(includes, Util.fixEmpty(excludes)), targets, listener);
+
+			log(listener, "Done: " + result);
+
+			if (targets.size() < expected) {
+				log(listener, (expected - targets.size()) + " sub-slaves of role " + targetRole + " were offline and got nothing.");
+				return false;
+			}
+
+			return true;
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("Transfer failed"));
+			return false;
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+			return true;
+		}
+
+		private ListBoxModel fillRoles() {
+			ListBoxModel model = new ListBoxModel();
+
+			for (String role: ((CompoundSlave.DescriptorImpl) Jenkins.getInstance().getDescriptor(CompoundSlave.class)).getRoles()) {
+				model.add(role, role);
+			}
+
+			return model;
+		}
+
+		public ListBoxModel doFillSourceRoleItems() {
+			return fillRoles();
+		}
+
+		public ListBoxModel doFillTargetRoleItems() {
+			return fillRoles();
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Transfer files between sub-nodes";
+		}
+	}
+
+	public String getSourceRole() {
+		return sourceRole;
+	}
+
+	public String getTargetRole() {
+		return targetRole;
+	}
+
+	public String getIncludes() {
+		return includes;
+	}
+
+	public String getExcludes() {
+		return excludes;
+	}
+}
@@ -0,0 +1,482 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.FilePath.TarCompression;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Streams files from one sub-slave directly to a number of other sub-slaves.
+ *
+ * The source sub-slave opens a socket, every target connects to it and a single gzipped tar stream
+ * is written to all of the connections at once, so the data never goes through master's channels.
+ *
+ * The socket is bound to the interface the source uses to reach the targets and is announced by its IP, so no name resolution is involved.
+ * Every transfer has a secret known only to the source and the targets: a connection has to present it first, the others are dropped.
+ *
+ * @author pupssman
+ */
+public class DirectTransfer {
+	/**
+	 * How long the source waits for all the targets to connect, in milliseconds
+	 */
+	private static final int ACCEPT_TIMEOUT = Integer.getInteger(DirectTransfer.class.getName() + ".acceptTimeout", 60000);
+
+	/**
+	 * How long a connected target has to present the secret, in milliseconds
+	 */
+	private static final int HANDSHAKE_TIMEOUT = 10000;
+
+	private static final int SECRET_LENGTH = 32;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Sockets opened by {@link Listen} and awaiting for {@link Send}, lives on the source side
+	 */
+	private static final Map<String, ServerSocket> openedSockets = new ConcurrentHashMap<String, ServerSocket>();
+
+	/**
+	 * Statistics of a finished transfer
+	 */
+	public static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final int files;
+		private final long bytes;
+		private final long millis;
+		private final int targets;
+
+		Result(int files, long bytes, long millis, int targets) {
+			this.files = files;
+			this.bytes = bytes;
+			this.millis = millis;
+			this.targets = targets;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		/**
+		 * @return compressed bytes sent to each target
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public int getTargets() {
+			return targets;
+		}
+
+		/**
+		 * @return overall throughput (to all the targets) in megabytes per second
+		 */
+		public double getThroughput() {
+			return (double) bytes * targets / 1024 / 1024 / Math.max(millis, 1) * 1000;
+		}
+
+		@Override
+		public String toString() {
+			return MessageFormat.format("{0} files, {1} compressed bytes to {2} targets in {3} ms ({4,number,#.##} MB/s)", files, bytes, targets, millis, getThroughput());
+		}
+	}
+
+	/**
+	 * Transfers the files selected by scanner from source directory to every target directory.
+	 *
+	 * @param source directory to read files from
+	 * @param scanner selects the files to transfer, relative to the source
+	 * @param targets directories to unpack the files to
+	 * @param listener
+	 * @return transfer statistics
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static Result transfer(FilePath source, DirScanner scanner, List<FilePath> targets, TaskListener listener) throws IOException, InterruptedException {
+		long started = System.currentTimeMillis();
+
+		if (targets.isEmpty()) {
+			return new Result(0, 0, 0, 0);
+		}
+
+		String token = UUID.randomUUID().toString();
+		byte[] secret = new byte[SECRET_LENGTH];
+		random.nextBytes(secret);
+
+		List<Future<List<String>>> targetAddresses = new ArrayList<Future<List<String>>>();
+		for (FilePath target: targets) {
+			targetAddresses.add(target.actAsync(new Addresses()));
+		}
+
+		List<String> addresses = new ArrayList<String>();
+		for (Future<List<String>> future: targetAddresses) {
+			try {
+				addresses.addAll(future.get());
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to get target addresses: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+
+		Endpoint endpoint = source.act(new Listen(token, addresses));
+
+		listener.getLogger().println(MessageFormat.format("[DirectTransfer] Serving {0} at {1}:{2,number,#} to {3} targets", source.getRemote(), endpoint.host, endpoint.port, targets.size()));
+
+		List<Future<Long>> received = new ArrayList<Future<Long>>();
+
+		try {
+			for (FilePath target: targets) {
+				received.add(target.actAsync(new Receive(endpoint, secret)));
+			}
+
+			Result sent = source.act(new Send(token, secret, scanner, targets.size()));
+
+			for (int i = 0; i < received.size(); i++) {
+				try {
+					received.get(i).get();
+				} catch (ExecutionException e) {
+					throw new IOException("Transfer to " + targets.get(i).getRemote() + " failed: " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+
+			return new Result(sent.files, sent.bytes, System.currentTimeMillis() - started, targets.size());
+		} finally {
+			for (Future<Long> future: received) {
+				future.cancel(true);
+			}
+			source.act(new Close(token));
+		}
+	}
+
+	private static final class Endpoint implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String host;
+		private final int port;
+
+		Endpoint(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+	}
+
+	/**
+	 * @return IPv4 addresses of the interfaces that are up, loopback ones last
+	 * @throws IOException
+	 */
+	static List<String> getLocalAddresses() throws IOException {
+		List<String> result = new ArrayList<String>();
+		List<String> loopback = new ArrayList<String>();
+
+		for (NetworkInterface networkInterface: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (!networkInterface.isUp()) {
+				continue;
+			}
+
+			for (InetAddress address: Collections.list(networkInterface.getInetAddresses())) {
+				if (address instanceof Inet4Address) {
+					(address.isLoopbackAddress() ? loopback : result).add(address.getHostAddress());
+				}
+			}
+		}
+
+		result.addAll(loopback);
+
+		return result;
+	}
+
+	/**
+	 * Lists the addresses of a target
+	 */
+	private static final class Addresses implements FileCallable<List<String>> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public List<String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			return getLocalAddresses();
+		}
+	}
+
+	/**
+	 * Opens a server socket on the source side, bound to the interface routed to the targets
+	 */
+	private static final class Listen implements FileCallable<Endpoint> {
+		private static final long serialVersionUID = 1L;
+		private final String token;
+		private final List<String> targetAddresses;
+
+		Listen(String token, List<String> targetAddresses) {
+			this.token = token;
+			this.targetAddresses = targetAddresses;
+		}
+
+		@Override
+		public Endpoint invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			InetAddress local = getRoutedAddress();
+			ServerSocket socket = new ServerSocket();
+
+			try {
+				socket.bind(new InetSocketAddress(local, 0));
+				socket.setSoTimeout(ACCEPT_TIMEOUT);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+
+			openedSockets.put(token, socket);
+
+			return new Endpoint(local.getHostAddress(), socket.getLocalPort());
+		}
+
+		/**
+		 * Asks the routing table which local address reaches the targets, no packets are sent
+		 */
+		private InetAddress getRoutedAddress() throws IOException {
+			for (String target: targetAddresses) {
+				DatagramSocket probe = new DatagramSocket();
+
+				try {
+					probe.connect(InetAddress.getByName(target), 9);
+					InetAddress local = probe.getLocalAddress();
+
+					if (local != null && !local.isAnyLocalAddress()) {
+						return local;
+					}
+				} catch (IOException e) {
+					// no route to this one, try the next
+				} finally {
+					probe.close();
+				}
+			}
+
+			List<String> own = getLocalAddresses();
+
+			if (own.isEmpty()) {
+				throw new IOException("No network interface to serve transfer on");
+			}
+
+			return InetAddress.getByName(own.get(0));
+		}
+	}
+
+	/**
+	 * Waits for all the targets to connect and writes the tar stream to them
+	 */
+	private static final class Send implements FileCallable<Result> {
+		private static final long serialVersionUID = 1L;
+		private final String token;
+		private final byte[] secret;
+		private final DirScanner scanner;
+		private final int targets;
+
+		Send(String token, byte[] secret, DirScanner scanner, int targets) {
+			this.token = token;
+			this.secret = secret;
+			this.scanner = scanner;
+			this.targets = targets;
+		}
+
+		@Override
+		public Result invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			ServerSocket serverSocket = openedSockets.get(token);
+
+			if (serverSocket == null) {
+				throw new IOException("No socket opened for transfer " + token);
+			}
+
+			long started = System.currentTimeMillis();
+			List<Socket> sockets = new ArrayList<Socket>();
+
+			try {
+				long deadline = started + ACCEPT_TIMEOUT;
+
+				while (sockets.size() < targets) {
+					long remaining = deadline - System.currentTimeMillis();
+
+					if (remaining <= 0) {
+						throw new SocketTimeoutException("Only " + sockets.size() + " of " + targets + " targets connected in " + ACCEPT_TIMEOUT + " ms");
+					}
+
+					serverSocket.setSoTimeout((int) remaining);
+					Socket socket = serverSocket.accept();
+
+					if (authenticate(socket)) {
+						sockets.add(socket);
+					} else {
+						socket.close();
+					}
+				}
+
+				List<OutputStream> outputs = new ArrayList<OutputStream>();
+				for (Socket socket: sockets) {
+					outputs.add(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+				}
+
+				CountingOutputStream counter = new CountingOutputStream(new FanOutOutputStream(outputs));
+				GZIPOutputStream gzip = new GZIPOutputStream(counter, 64 * 1024);
+
+				int files = new FilePath(f).tar(gzip, scanner);
+
+				gzip.finish();
+				counter.flush();
+
+				return new Result(files, counter.getByteCount(), System.currentTimeMillis() - started, targets);
+			} finally {
+				for (Socket socket: sockets) {
+					socket.close();
+				}
+			}
+		}
+
+		/**
+		 * @return if the peer presented the secret of this transfer in time
+		 */
+		private boolean authenticate(Socket socket) {
+			byte[] presented = new byte[secret.length];
+
+			try {
+				socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+				new DataInputStream(socket.getInputStream()).readFully(presented);
+				socket.setSoTimeout(0);
+			} catch (IOException e) {
+				return false;
+			}
+
+			return MessageDigest.isEqual(secret, presented);
+		}
+	}
+
+	/**
+	 * Releases the server socket on the source side
+	 */
+	private static final class Close implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+		private final String token;
+
+		Close(String token) {
+			this.token = token;
+		}
+
+		@Override
+		public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			ServerSocket socket = openedSockets.remove(token);
+
+			if (socket != null) {
+				socket.close();
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Connects to the source and unpacks the stream on the target side
+	 */
+	private static final class Receive implements FileCallable<Long> {
+		private static final long serialVersionUID = 1L;
+		private final Endpoint endpoint;
+		private final byte[] secret;
+
+		Receive(Endpoint endpoint, byte[] secret) {
+			this.endpoint = endpoint;
+			this.secret = secret;
+		}
+
+		@Override
+		public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+			Socket socket = new Socket(endpoint.host, endpoint.port);
+
+			try {
+				OutputStream out = socket.getOutputStream();
+				out.write(secret);
+				out.flush();
+
+				CountingInputStream in = new CountingInputStream(socket.getInputStream());
+				FilePath target = new FilePath(f);
+
+				target.mkdirs();
+				target.untarFrom(in, TarCompression.GZIP);
+
+				return in.getByteCount();
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes everything to all the given streams
+	 */
+	private static final class FanOutOutputStream extends OutputStream {
+		private final List<OutputStream> outputs;
+
+		FanOutOutputStream(List<OutputStream> outputs) {
+			this.outputs = outputs;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			for (OutputStream output: outputs) {
+				output.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (OutputStream output: outputs) {
+				output.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			for (OutputStream output: outputs) {
+				output.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (OutputStream output: outputs) {
+				IOUtils.closeQuietly(output);
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in milliseconds.
+ *
+ * Buckets grow exponentially, each power of two is split in 8 buckets,
+ * so percentiles are precise up to ~12%, from 1 ms to days.
+ *
+ * @author pupssman
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 8;
+	private static final int POWERS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(POWERS * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long millis) {
+		if (millis < 0) {
+			millis = 0;
+		}
+
+		buckets.incrementAndGet(bucketOf(millis));
+		count.incrementAndGet();
+		sum.addAndGet(millis);
+
+		long currentMax;
+		while ((currentMax = max.get()) < millis && !max.compareAndSet(currentMax, millis)) {
+			// retry
+		}
+	}
+
+	private static int bucketOf(long millis) {
+		if (millis < SUB_BUCKETS) {
+			return (int) millis;
+		}
+
+		int power = 63 - Long.numberOfLeadingZeros(millis);
+		// position within [2^power, 2^(power+1)), in SUB_BUCKETS steps
+		int sub = (int) ((millis - (1L << power)) * SUB_BUCKETS >> power);
+		int bucket = (power - 2) * SUB_BUCKETS + sub;
+
+		return Math.min(bucket, POWERS * SUB_BUCKETS - 1);
+	}
+
+	/**
+	 * @return upper bound of the values in the given bucket
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int power = bucket / SUB_BUCKETS + 2;
+		int sub = bucket % SUB_BUCKETS;
+
+		return (1L << power) + ((sub + 1L) << power) / SUB_BUCKETS - 1;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return approximate value at the given percentile or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : sum.get() / total;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "p50=" + getPercentile(50) + "ms p95=" + getPercentile(95) + "ms p99=" + getPercentile(99) + "ms max=" + getMax() + "ms n=" + getCount();
+	}
+}
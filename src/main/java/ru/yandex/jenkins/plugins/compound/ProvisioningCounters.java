@@ -0,0 +1,49 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free counters of {@link CompoundSlave} provisioning outcomes for a single {@link CompoundCloud.ConfigurationEntry}
+ *
+ * @author pupssman
+ */
+public class ProvisioningCounters {
+	private final AtomicLong provisioned = new AtomicLong();
+	private final AtomicLong inFlight = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong terminated = new AtomicLong();
+
+	void started() {
+		inFlight.incrementAndGet();
+	}
+
+	void succeeded() {
+		inFlight.decrementAndGet();
+		provisioned.incrementAndGet();
+	}
+
+	void failed() {
+		inFlight.decrementAndGet();
+		failed.incrementAndGet();
+	}
+
+	void terminated() {
+		terminated.incrementAndGet();
+	}
+
+	public long getProvisioned() {
+		return provisioned.get();
+	}
+
+	public long getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getTerminated() {
+		return terminated.get();
+	}
+}
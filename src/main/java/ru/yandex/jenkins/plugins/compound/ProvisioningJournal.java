@@ -0,0 +1,265 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import hudson.slaves.ComputerListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Append-only journal of {@link CompoundCloud} provisioning, to survive Jenkins restarts in the middle of provisioning.
+ *
+ * Records an intent to create a compound, every sub-slave provisioned for it (with full node configuration, so it can be terminated later)
+ * and the end of provisioning, which is when the compound shows up in Jenkins. Replayed and truncated on startup, see {@link CompoundCloud#recoverProvisioning()},
+ * and truncated whenever there is no provisioning in flight.
+ * There is one journal per file, see {@link #of(File)}, so provisioning in flight is not forgotten when a cloud is re-created by configuration save.
+ *
+ * @author pupssman
+ */
+public class ProvisioningJournal {
+	private static final String INTENT = "INTENT";
+	private static final String NODE = "NODE";
+	private static final String ABORT = "ABORT";
+	private static final String DONE = "DONE";
+	private static final String ENCODING = "UTF-8";
+
+	private static final Logger logger = Logger.getLogger(ProvisioningJournal.class.getCanonicalName());
+
+	private static final ConcurrentMap<File, ProvisioningJournal> journals = new ConcurrentHashMap<File, ProvisioningJournal>();
+
+	private final File file;
+	/**
+	 * Names of compounds journaled since the last truncation and not finished yet
+	 */
+	private final Set<String> inFlight = new HashSet<String>();
+
+	/**
+	 * Provisioning of a compound that was not finished or aborted
+	 *
+	 * @author pupssman
+	 */
+	public static final class Unfinished {
+		private final String compoundName;
+		private final String configurationLabel;
+		private final Map<String, List<Node>> nodes = new LinkedHashMap<String, List<Node>>();
+
+		Unfinished(String compoundName, String configurationLabel) {
+			this.compoundName = compoundName;
+			this.configurationLabel = configurationLabel;
+		}
+
+		public String getCompoundName() {
+			return compoundName;
+		}
+
+		public String getConfigurationLabel() {
+			return configurationLabel;
+		}
+
+		/**
+		 * @return provisioned sub-slaves by roles
+		 */
+		public Map<String, List<Node>> getNodes() {
+			return nodes;
+		}
+
+		public List<Node> getAllNodes() {
+			List<Node> result = new ArrayList<Node>();
+			for (List<Node> roleNodes: nodes.values()) {
+				result.addAll(roleNodes);
+			}
+			return result;
+		}
+	}
+
+	public ProvisioningJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param file
+	 * @return the journal kept in the given file, shared by everyone asking for it
+	 */
+	public static ProvisioningJournal of(File file) {
+		ProvisioningJournal journal = journals.get(file);
+
+		if (journal == null) {
+			journals.putIfAbsent(file, new ProvisioningJournal(file));
+			journal = journals.get(file);
+		}
+
+		return journal;
+	}
+
+	public synchronized void intent(String compoundName, String configurationLabel) {
+		inFlight.add(compoundName);
+		append(INTENT, compoundName, configurationLabel);
+	}
+
+	public void node(String compoundName, String role, Node node) {
+		try {
+			append(NODE, compoundName, role, new String(Base64.encodeBase64(Jenkins.XSTREAM.toXML(node).getBytes(ENCODING)), ENCODING));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to journal node " + node.getNodeName(), e);
+		}
+	}
+
+	public synchronized void abort(String compoundName) {
+		append(ABORT, compoundName);
+		finished(compoundName);
+	}
+
+	/**
+	 * Records the compound is added to Jenkins, i.e. its sub-slaves are not orphans anymore
+	 */
+	public synchronized void done(String compoundName) {
+		if (inFlight.contains(compoundName)) {
+			append(DONE, compoundName);
+			finished(compoundName);
+		}
+	}
+
+	/**
+	 * @return names of compounds being provisioned
+	 */
+	public synchronized Set<String> getInFlight() {
+		return new HashSet<String>(inFlight);
+	}
+
+	private void finished(String compoundName) {
+		inFlight.remove(compoundName);
+
+		if (inFlight.isEmpty()) {
+			truncate();
+		}
+	}
+
+	private synchronized void append(String... fields) {
+		StringBuilder line = new StringBuilder();
+
+		for (String field: fields) {
+			if (line.length() > 0) {
+				line.append('\t');
+			}
+			line.append(field);
+		}
+		line.append('\n');
+
+		try {
+			file.getParentFile().mkdirs();
+			FileOutputStream out = new FileOutputStream(file, true);
+			try {
+				out.write(line.toString().getBytes(ENCODING));
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write provisioning journal " + file, e);
+		}
+	}
+
+	/**
+	 * @return provisioning that was started but not finished or aborted, in the order of intents
+	 * @throws IOException
+	 */
+	public synchronized List<Unfinished> replay() throws IOException {
+		Map<String, Unfinished> result = new LinkedHashMap<String, Unfinished>();
+		BufferedReader reader;
+
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+		} catch (FileNotFoundException e) {
+			return new ArrayList<Unfinished>();
+		}
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+
+				if (fields[0].equals(INTENT) && fields.length == 3) {
+					result.put(fields[1], new Unfinished(fields[1], fields[2]));
+				} else if (fields[0].equals(NODE) && fields.length == 4 && result.containsKey(fields[1])) {
+					Map<String, List<Node>> nodes = result.get(fields[1]).nodes;
+
+					if (nodes.get(fields[2]) == null) {
+						nodes.put(fields[2], new ArrayList<Node>());
+					}
+
+					try {
+						nodes.get(fields[2]).add((Node) Jenkins.XSTREAM.fromXML(new String(Base64.decodeBase64(fields[3].getBytes(ENCODING)), ENCODING)));
+					} catch (RuntimeException e) {
+						logger.log(Level.WARNING, "Failed to read journaled node of " + fields[1], e);
+					}
+				} else if ((fields[0].equals(ABORT) || fields[0].equals(DONE)) && fields.length == 2) {
+					result.remove(fields[1]);
+				} else {
+					// probably a line torn by crash
+					logger.warning("Skipping bad journal line in " + file);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return new ArrayList<Unfinished>(result.values());
+	}
+
+	/**
+	 * Forgets everything journaled so far
+	 */
+	public synchronized void truncate() {
+		inFlight.clear();
+
+		if (file.exists() && !file.delete()) {
+			logger.warning("Failed to truncate provisioning journal " + file);
+		}
+	}
+
+	/**
+	 * Marks provisioning done as soon as the compound is added to Jenkins
+	 *
+	 * @author pupssman
+	 */
+	@Extension
+	public static class Settler extends ComputerListener {
+		@Override
+		public void onConfigurationChange() {
+			Jenkins jenkins = Jenkins.getInstance();
+
+			for (Cloud cloud: jenkins.clouds) {
+				if (cloud instanceof CompoundCloud) {
+					ProvisioningJournal journal = ((CompoundCloud) cloud).getJournal();
+
+					for (String compoundName: journal.getInFlight()) {
+						if (jenkins.getNode(compoundName) != null) {
+							journal.done(compoundName);
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Durations of {@link CompoundSlave} provisioning phases for a single {@link CompoundCloud.ConfigurationEntry}
+ *
+ * @author pupssman
+ */
+public class ProvisioningTimings {
+	public enum Phase {
+		/** Call to backend cloud provision for a single role */
+		BACKEND_PROVISION,
+		/** Waiting for backend planned nodes of a single role */
+		FUTURE_RESOLUTION,
+		/** Adding sub-slaves to Jenkins */
+		ADD_NODE,
+		/** Creating {@link CompoundSlave} itself */
+		COMPOUND_CONSTRUCTION,
+		/** Launch of a single sub-slave */
+		SUB_SLAVE_LAUNCH,
+		/** Occupying executors of a single sub-slave */
+		ENSLAVE,
+		/** Attaching root channel */
+		ROOT_ATTACH
+	}
+
+	private final Map<Phase, LatencyHistogram> histograms;
+
+	public ProvisioningTimings() {
+		Map<Phase, LatencyHistogram> map = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+		for (Phase phase: Phase.values()) {
+			map.put(phase, new LatencyHistogram());
+		}
+
+		// never modified after construction, so it's safe to read without locks
+		histograms = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Records a phase that started at the given time
+	 *
+	 * @param phase
+	 * @param startedMillis
+	 */
+	public void record(Phase phase, long startedMillis) {
+		histograms.get(phase).record(System.currentTimeMillis() - startedMillis);
+	}
+
+	public LatencyHistogram get(Phase phase) {
+		return histograms.get(phase);
+	}
+
+	public Map<Phase, LatencyHistogram> getHistograms() {
+		return histograms;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+
+		for (Map.Entry<Phase, LatencyHistogram> entry: histograms.entrySet()) {
+			result.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+
+		return result.toString();
+	}
+}
@@ -0,0 +1,131 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Timeline of provisioning and launch of a single {@link CompoundSlave}.
+ *
+ * Spans are recorded on named tracks (one per parallel branch) and exported in Chrome trace-event format,
+ * so the trace can be opened in chrome://tracing to see which branch was the critical path.
+ * The trace keeps at most {@link #MAX_SPANS} latest spans, as every relaunch of the compound adds more.
+ *
+ * @author pupssman
+ */
+public class ProvisioningTrace {
+	static final int MAX_SPANS = Integer.getInteger(ProvisioningTrace.class.getName() + ".maxSpans", 1000);
+
+	private final long startedNanos = System.nanoTime();
+	private final long startedMillis = System.currentTimeMillis();
+	private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<Span>();
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * A single timed operation. Becomes a part of the trace when ended.
+	 *
+	 * @author pupssman
+	 */
+	public class Span {
+		private final String name;
+		private final String track;
+		private final long begin = System.nanoTime();
+		private long end;
+		private String failure;
+
+		private Span(String name, String track) {
+			this.name = name;
+			this.track = track;
+		}
+
+		public void end() {
+			end = System.nanoTime();
+			spans.add(this);
+
+			if (size.incrementAndGet() > MAX_SPANS && spans.poll() != null) {
+				size.decrementAndGet();
+			}
+		}
+
+		public void fail(Throwable cause) {
+			failure = cause.toString();
+			end();
+		}
+	}
+
+	/**
+	 * Starts a span
+	 *
+	 * @param name of the operation
+	 * @param track of the parallel branch the operation belongs to
+	 * @return started span that should be {@link Span#end()}ed
+	 */
+	public Span begin(String name, String track) {
+		return new Span(name, track);
+	}
+
+	public boolean isEmpty() {
+		return spans.isEmpty();
+	}
+
+	/**
+	 * @return trace in Chrome trace-event format
+	 */
+	public JSONObject toJSON() {
+		List<Span> snapshot = new ArrayList<Span>(spans);
+		Map<String, Integer> tracks = new LinkedHashMap<String, Integer>();
+		JSONArray events = new JSONArray();
+
+		for (Span span: snapshot) {
+			Integer tid = tracks.get(span.track);
+			if (tid == null) {
+				tid = tracks.size() + 1;
+				tracks.put(span.track, tid);
+			}
+
+			JSONObject event = new JSONObject();
+			event.put("name", span.name);
+			event.put("cat", "compound");
+			event.put("ph", "X");
+			event.put("pid", 1);
+			event.put("tid", tid);
+			event.put("ts", (span.begin - startedNanos) / 1000);
+			event.put("dur", (span.end - span.begin) / 1000);
+			if (span.failure != null) {
+				JSONObject args = new JSONObject();
+				args.put("failure", span.failure);
+				event.put("args", args);
+			}
+			events.add(event);
+		}
+
+		for (Map.Entry<String, Integer> track: tracks.entrySet()) {
+			JSONObject args = new JSONObject();
+			args.put("name", track.getKey());
+
+			JSONObject event = new JSONObject();
+			event.put("name", "thread_name");
+			event.put("ph", "M");
+			event.put("pid", 1);
+			event.put("tid", track.getValue());
+			event.put("args", args);
+			events.add(event);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("traceEvents", events);
+		result.put("displayTimeUnit", "ms");
+
+		JSONObject metadata = new JSONObject();
+		metadata.put("startedMillis", startedMillis);
+		result.put("otherData", metadata);
+
+		return result;
+	}
+}
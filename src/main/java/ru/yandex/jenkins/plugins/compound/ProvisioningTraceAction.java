@@ -0,0 +1,51 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Action;
+
+import java.io.IOException;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Computer action serving {@link ProvisioningTrace} of a {@link CompoundSlave} as a file for chrome://tracing
+ *
+ * @author pupssman
+ */
+public class ProvisioningTraceAction implements Action {
+	private final CompoundComputer computer;
+
+	public ProvisioningTraceAction(CompoundComputer computer) {
+		this.computer = computer;
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		computer.checkPermission(Jenkins.READ);
+		CompoundSlave compoundSlave = computer.getNode();
+
+		if (compoundSlave == null) {
+			rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		rsp.setHeader("Content-Disposition", "attachment; filename=" + compoundSlave.getNodeName() + ".trace.json");
+		CompoundMetrics.write(compoundSlave.getTrace().toJSON(), rsp);
+	}
+
+	@Override
+	public String getIconFileName() {
+		return "clock.png";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Provisioning trace";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "provisioningTrace";
+	}
+}
@@ -0,0 +1,173 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Computer;
+import hudson.model.Slave;
+import hudson.remoting.Callable;
+import hudson.remoting.Future;
+import hudson.remoting.VirtualChannel;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load of the sub-slaves, used by {@link CompoundBuilder.SelectionPolicy} to spread steps across a role.
+ *
+ * Load is the number of {@link CompoundBuilder} steps in flight on the sub-slave, plus its busy executors,
+ * plus its system load average per CPU as reported by the sub-slave itself.
+ *
+ * @author pupssman
+ */
+public class SubSlaveLoad {
+	private static final Logger logger = Logger.getLogger(SubSlaveLoad.class.getCanonicalName());
+
+	/**
+	 * How long to wait for a sub-slave to report its load, milliseconds
+	 */
+	private static final long TIMEOUT = Long.getLong(SubSlaveLoad.class.getName() + ".timeout", 5000);
+
+	/**
+	 * Numbers of {@link CompoundBuilder} steps running by sub-slave names
+	 */
+	private static final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private SubSlaveLoad() {
+		// utility
+	}
+
+	/**
+	 * Marks a step started on the sub-slave
+	 *
+	 * @param nodeName
+	 */
+	public static void begin(String nodeName) {
+		AtomicInteger counter = inFlight.get(nodeName);
+
+		if (counter == null) {
+			AtomicInteger fresh = new AtomicInteger();
+			counter = inFlight.putIfAbsent(nodeName, fresh);
+			if (counter == null) {
+				counter = fresh;
+			}
+		}
+
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Marks a step finished on the sub-slave
+	 *
+	 * @param nodeName
+	 */
+	public static void end(String nodeName) {
+		AtomicInteger counter = inFlight.get(nodeName);
+
+		if (counter != null && counter.decrementAndGet() <= 0) {
+			inFlight.remove(nodeName, counter);
+		}
+	}
+
+	/**
+	 * @param nodeName
+	 * @return number of steps running on the sub-slave
+	 */
+	public static int getInFlight(String nodeName) {
+		AtomicInteger counter = inFlight.get(nodeName);
+
+		return counter == null ? 0 : Math.max(0, counter.get());
+	}
+
+	/**
+	 * Asks all the sub-slaves for their load in parallel
+	 *
+	 * @param slaves
+	 * @return load of each sub-slave in the given order, {@link Double#MAX_VALUE} for the ones that are offline or did not answer in time
+	 */
+	public static Map<Slave, Double> measure(List<Slave> slaves) {
+		Map<Slave, Future<Double>> futures = new LinkedHashMap<Slave, Future<Double>>();
+
+		for (Slave slave: slaves) {
+			VirtualChannel channel = slave.getChannel();
+
+			if (channel == null) {
+				futures.put(slave, null);
+				continue;
+			}
+
+			try {
+				futures.put(slave, channel.callAsync(new SystemLoad()));
+			} catch (Exception e) {
+				logger.log(Level.FINE, "Failed to ask " + slave.getNodeName() + " for its load", e);
+				futures.put(slave, null);
+			}
+		}
+
+		Map<Slave, Double> result = new LinkedHashMap<Slave, Double>();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+
+		for (Map.Entry<Slave, Future<Double>> entry: futures.entrySet()) {
+			Slave slave = entry.getKey();
+			double load = Double.MAX_VALUE;
+
+			if (entry.getValue() != null) {
+				try {
+					double system = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					Computer computer = slave.toComputer();
+
+					load = getInFlight(slave.getNodeName()) + (computer == null ? 0 : computer.countBusy()) + Math.max(0, system);
+				} catch (Exception e) {
+					logger.log(Level.FINE, "Failed to get load of " + slave.getNodeName(), e);
+					entry.getValue().cancel(true);
+				}
+			}
+
+			result.put(slave, load);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param slaves
+	 * @return the given sub-slaves, least loaded first, the order is kept for the equally loaded ones
+	 */
+	public static List<Slave> sortByLoad(List<Slave> slaves) {
+		final Map<Slave, Double> loads = measure(slaves);
+		List<Slave> result = new ArrayList<Slave>(slaves);
+
+		Collections.sort(result, new Comparator<Slave>() {
+			@Override
+			public int compare(Slave a, Slave b) {
+				return Double.compare(loads.get(a), loads.get(b));
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * System load average per available CPU, or 0 if the platform does not tell it
+	 */
+	private static final class SystemLoad implements Callable<Double, RuntimeException> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Double call() {
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			double average = os.getSystemLoadAverage();
+
+			return average < 0 ? 0 : average / os.getAvailableProcessors();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.model.BuildListener;
+import hudson.model.TopLevelItem;
+import hudson.model.WorkspaceListener;
+import hudson.model.AbstractBuild;
+import hudson.model.Slave;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList.Lease;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Workspace preparation of a sub-slave for a {@link CompoundBuilder} step.
+ *
+ * Everything the step needs from the sub-slave is done by a single remote call, issued by {@link #start(AbstractBuild, Slave, String)}
+ * without waiting, so preparations of all the sub-slaves of a step go in parallel and cost one round trip altogether.
+ *
+ * @author pupssman
+ */
+class SubSlavePreparation {
+	private final Slave slave;
+	private final Lease lease;
+	private final Future<State> state;
+
+	/**
+	 * What the sub-slave reports about the workspace
+	 */
+	static final class State implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean cloned;
+
+		State(boolean cloned) {
+			this.cloned = cloned;
+		}
+
+		/**
+		 * @return if the workspace was cloned from a {@link WorkspaceTemplate}
+		 */
+		boolean isCloned() {
+			return cloned;
+		}
+	}
+
+	/**
+	 * Creates the workspace directory, looks into it and fills it from the template if it is empty
+	 */
+	private static final class Prepare implements FileCallable<State> {
+		private static final long serialVersionUID = 1L;
+
+		private final String template;
+
+		private Prepare(String template) {
+			this.template = template;
+		}
+
+		@Override
+		public State invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			if (!workspace.isDirectory() && !workspace.mkdirs() && !workspace.isDirectory()) {
+				throw new IOException("Failed to create workspace " + workspace);
+			}
+
+			String[] files = workspace.list();
+			boolean empty = files == null || files.length == 0;
+
+			return new State(empty && template != null && WorkspaceTemplate.cloneTo(new File(template), workspace));
+		}
+	}
+
+	private SubSlavePreparation(Slave slave, Lease lease, Future<State> state) {
+		this.slave = slave;
+		this.lease = lease;
+		this.state = state;
+	}
+
+	/**
+	 * Allocates the workspace and sends the remote part of preparation, without waiting for it
+	 *
+	 * @param build
+	 * @param slave
+	 * @param template location of the {@link WorkspaceTemplate} to clone into an empty workspace, null for none
+	 * @return the preparation to {@link #finish(AbstractBuild, BuildListener)}
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static SubSlavePreparation start(AbstractBuild<?, ?> build, Slave slave, String template) throws IOException, InterruptedException {
+		Lease lease = slave.getComputer().getWorkspaceList().allocate(slave.getWorkspaceFor((TopLevelItem) build.getProject()), build);
+
+		try {
+			return new SubSlavePreparation(slave, lease, lease.path.actAsync(new Prepare(template)));
+		} catch (IOException e) {
+			lease.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the remote part and runs the master-side hooks
+	 *
+	 * @param build
+	 * @param listener
+	 * @return state of the workspace before the preparation
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	State finish(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
+		State result;
+
+		try {
+			result = state.get();
+		} catch (ExecutionException e) {
+			lease.release();
+			throw new IOException("Failed to prepare workspace " + lease.path.getRemote() + " on " + slave.getDisplayName(), e.getCause());
+		}
+
+		slave.getFileSystemProvisioner().prepareWorkspace(build, lease.path, listener);
+
+		for (WorkspaceListener wl : WorkspaceListener.all()) {
+			wl.beforeUse(build, lease.path, listener);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gives the workspace back if the step is not going to run on the sub-slave after all
+	 */
+	void abandon() {
+		state.cancel(true);
+		lease.release();
+	}
+
+	FilePath getWorkspace() {
+		return lease.path;
+	}
+
+	Slave getSlave() {
+		return slave;
+	}
+}
@@ -0,0 +1,74 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the queue off the sub-slaves that are part of a {@link CompoundSlave}.
+ *
+ * Reserving and releasing a sub-slave is a single map operation, executors themselves are never touched.
+ *
+ * @author pupssman
+ */
+@Extension
+public class SubSlaveReservation extends QueueTaskDispatcher {
+	/**
+	 * Names of the compounds by names of their reserved sub-slaves
+	 */
+	private static final ConcurrentMap<String, String> reservations = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Tells why the queue can't use a sub-slave
+	 *
+	 * @author pupssman
+	 */
+	public static class ReservedByCompound extends CauseOfBlockage {
+		private final String compoundName;
+
+		public ReservedByCompound(String compoundName) {
+			this.compoundName = compoundName;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Part of compound " + compoundName;
+		}
+	}
+
+	/**
+	 * @param nodeName of a sub-slave
+	 * @param compoundName of the compound it belongs to
+	 */
+	public static void reserve(String nodeName, String compoundName) {
+		reservations.put(nodeName, compoundName);
+	}
+
+	/**
+	 * @param nodeName of a sub-slave
+	 * @return if the node was reserved
+	 */
+	public static boolean release(String nodeName) {
+		return reservations.remove(nodeName) != null;
+	}
+
+	/**
+	 * @param nodeName
+	 * @return name of the compound the node is reserved by or null if it is free
+	 */
+	public static String getReservedBy(String nodeName) {
+		return reservations.get(nodeName);
+	}
+
+	@Override
+	public CauseOfBlockage canTake(Node node, BuildableItem item) {
+		String compoundName = reservations.get(node.getNodeName());
+
+		return compoundName == null ? null : new ReservedByCompound(compoundName);
+	}
+}
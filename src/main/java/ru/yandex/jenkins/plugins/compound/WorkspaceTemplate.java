@@ -0,0 +1,329 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.Slave;
+import hudson.remoting.VirtualChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Per-role workspace templates kept on the sub-slave hosts.
+ *
+ * A template is captured from the workspace of a successful {@link CompoundBuilder} step and cloned into empty workspaces
+ * by {@link SubSlavePreparation}. Both are copies made with {@code cp -a --reflink=auto}, copy-on-write where the file system supports it,
+ * with {@code cp -pR} where cp is not GNU and with plain Java copy where there is no cp at all.
+ * Hardlinks are not used, as steps that change files in place would change the template too.
+ * Clones and captures of a template, possibly by several slave processes sharing the cache, are serialized by a lock file next to it, see {@link Lock}.
+ *
+ * @author pupssman
+ */
+final class WorkspaceTemplate {
+	private WorkspaceTemplate() {
+		// utility
+	}
+
+	/**
+	 * @param slave
+	 * @param name of the template
+	 * @param role of the sub-slave
+	 * @return path to the template on the sub-slave, in the global template cache if one is configured or under the slave root otherwise
+	 */
+	static String getLocation(Slave slave, String name, String role) {
+		CompoundSlave.DescriptorImpl descriptor = (CompoundSlave.DescriptorImpl) Jenkins.getInstance().getDescriptor(CompoundSlave.class);
+		String cache = descriptor == null ? null : Util.fixEmptyAndTrim(descriptor.getTemplateCache());
+		FilePath root = cache == null ? slave.getRootPath().child("workspace-templates") : slave.createPath(cache);
+
+		return root.child(sanitize(name)).child(sanitize(role)).getRemote();
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^\\w.-]", "_");
+	}
+
+	/**
+	 * If cp of this host supports --reflink, null until checked
+	 */
+	private static volatile Boolean reflink;
+
+	/**
+	 * Lock of a template: shared by clones, exclusive for replacing the template.
+	 *
+	 * Other processes are locked out with a {@link FileLock} on {@code <template>.lock}. As file locks are held by the whole JVM,
+	 * threads of this one share a single lock of the file and are coordinated by a {@link ReadWriteLock}.
+	 */
+	static final class Lock {
+		private static final ConcurrentMap<String, Holder> holders = new ConcurrentHashMap<String, Holder>();
+
+		private static final class Holder {
+			private final ReadWriteLock local = new ReentrantReadWriteLock();
+			private final File file;
+			private RandomAccessFile lockFile;
+			private FileLock fileLock;
+			private int users = 0;
+
+			private Holder(File file) {
+				this.file = file;
+			}
+
+			private synchronized void lockFile(boolean shared) throws IOException {
+				if (users++ > 0) {
+					return;
+				}
+
+				try {
+					lockFile = new RandomAccessFile(file, "rw");
+					fileLock = lockFile.getChannel().lock(0, Long.MAX_VALUE, shared);
+				} catch (IOException e) {
+					unlockFile();
+					throw e;
+				}
+			}
+
+			private synchronized void unlockFile() throws IOException {
+				if (--users > 0) {
+					return;
+				}
+
+				try {
+					if (fileLock != null) {
+						fileLock.release();
+					}
+				} finally {
+					fileLock = null;
+					if (lockFile != null) {
+						lockFile.close();
+						lockFile = null;
+					}
+				}
+			}
+		}
+
+		private final Holder holder;
+		private final java.util.concurrent.locks.Lock local;
+
+		private Lock(Holder holder, java.util.concurrent.locks.Lock local) {
+			this.holder = holder;
+			this.local = local;
+		}
+
+		/**
+		 * @param template
+		 * @param exclusive true to replace the template, false to read it
+		 * @return acquired lock, to be {@link #release()}d
+		 * @throws IOException
+		 */
+		static Lock acquire(File template, boolean exclusive) throws IOException {
+			File file = new File(template.getParentFile(), template.getName() + ".lock");
+			String key = file.getAbsolutePath();
+
+			Holder holder = holders.get(key);
+			if (holder == null) {
+				holders.putIfAbsent(key, new Holder(file));
+				holder = holders.get(key);
+			}
+
+			if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs() && !file.getParentFile().isDirectory()) {
+				throw new IOException("Failed to create " + file.getParentFile());
+			}
+
+			java.util.concurrent.locks.Lock local = exclusive ? holder.local.writeLock() : holder.local.readLock();
+			local.lock();
+
+			try {
+				holder.lockFile(!exclusive);
+			} catch (IOException e) {
+				local.unlock();
+				throw e;
+			}
+
+			return new Lock(holder, local);
+		}
+
+		void release() throws IOException {
+			try {
+				holder.unlockFile();
+			} finally {
+				local.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Fills an empty workspace from the template, if there is one
+	 *
+	 * @param template location of the template
+	 * @param workspace
+	 * @return if the workspace was cloned
+	 * @throws IOException if the template exists but could not be copied, the workspace is left empty then
+	 * @throws InterruptedException
+	 */
+	static boolean cloneTo(File template, File workspace) throws IOException, InterruptedException {
+		Lock lock = Lock.acquire(template, false);
+
+		try {
+			if (!template.isDirectory()) {
+				return false;
+			}
+
+			try {
+				copy(template, workspace);
+			} catch (IOException e) {
+				// a half-cloned workspace would not be cloned again, as it's not empty
+				Util.deleteContentsRecursive(workspace);
+				throw e;
+			}
+
+			return true;
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * @return if cp of this host supports --reflink, checked once by copying a file with it
+	 */
+	private static boolean isReflinkSupported() {
+		if (reflink == null) {
+			boolean supported = false;
+
+			try {
+				File probe = File.createTempFile("reflink", ".probe");
+				File copy = new File(probe.getPath() + ".copy");
+
+				try {
+					supported = run("cp", "--reflink=auto", probe.getPath(), copy.getPath()) == null;
+				} finally {
+					probe.delete();
+					copy.delete();
+				}
+			} catch (IOException e) {
+				// no cp at all
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			reflink = supported;
+		}
+
+		return reflink;
+	}
+
+	/**
+	 * @param command
+	 * @return null if the command succeeded or its output otherwise
+	 * @throws IOException if the command could not be started
+	 * @throws InterruptedException
+	 */
+	private static String run(String... command) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		InputStream output = process.getInputStream();
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = output.read(buffer)) >= 0) {
+				if (captured.size() < 64 * 1024) {
+					captured.write(buffer, 0, read);
+				}
+			}
+		} finally {
+			output.close();
+		}
+
+		return process.waitFor() == 0 ? null : captured.toString();
+	}
+
+	/**
+	 * Copies contents of one local directory into another, existing files are overwritten
+	 *
+	 * @param from
+	 * @param to
+	 * @throws IOException if the copy failed, it may be partial then
+	 * @throws InterruptedException
+	 */
+	static void copy(File from, File to) throws IOException, InterruptedException {
+		if (!to.isDirectory() && !to.mkdirs()) {
+			throw new IOException("Failed to create " + to);
+		}
+
+		if (File.pathSeparatorChar == ':') {
+			String failure = isReflinkSupported()
+					? run("cp", "-a", "--reflink=auto", from.getPath() + "/.", to.getPath())
+					: run("cp", "-pR", from.getPath() + "/.", to.getPath());
+
+			if (failure != null) {
+				throw new IOException("Failed to copy " + from + " to " + to + ": " + failure.trim());
+			}
+			return;
+		}
+
+		new FilePath(from).copyRecursiveTo(new FilePath(to));
+	}
+
+	/**
+	 * Replaces the template with the copy of the workspace it is invoked on.
+	 *
+	 * The copy is made aside and then renamed under the exclusive {@link Lock}, so clones see either the old template or the new one, but never a part of one.
+	 */
+	static final class Capture implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String location;
+
+		Capture(String location) {
+			this.location = location;
+		}
+
+		@Override
+		public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+			File template = new File(location);
+			File parent = template.getParentFile();
+			long stamp = System.nanoTime();
+			File staging = new File(parent, template.getName() + ".new-" + stamp);
+			File old = new File(parent, template.getName() + ".old-" + stamp);
+
+			try {
+				copy(workspace, staging);
+
+				Lock lock = Lock.acquire(template, true);
+
+				try {
+					if (template.exists() && !template.renameTo(old)) {
+						throw new IOException("Failed to move away old template " + template);
+					}
+
+					if (!staging.renameTo(template)) {
+						// don't leave the role without a template
+						old.renameTo(template);
+						throw new IOException("Failed to put new template in place of " + template);
+					}
+				} finally {
+					lock.release();
+				}
+			} finally {
+				if (staging.exists()) {
+					Util.deleteRecursive(staging);
+				}
+				if (old.exists()) {
+					Util.deleteRecursive(old);
+				}
+			}
+
+			return null;
+		}
+	}
+}
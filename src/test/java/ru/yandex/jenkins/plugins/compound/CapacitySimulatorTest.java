@@ -0,0 +1,81 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * @author pupssman
+ */
+public class CapacitySimulatorTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	@Test
+	public void readsTraceSortedByTime() throws IOException {
+		List<CapacitySimulator.Arrival> trace = CapacitySimulator.readTrace(new StringReader("# time,label,duration\n120, linux ,60\n\n0,linux && !windows,30\n60,linux,10\n"));
+
+		assertEquals(3, trace.size());
+		assertEquals(0, trace.get(0).getTime());
+		assertEquals("linux && !windows", trace.get(0).getLabel());
+		assertEquals(30 * 1000, trace.get(0).getDuration());
+		assertEquals(60 * 1000, trace.get(1).getTime());
+		assertEquals(10 * 1000, trace.get(1).getDuration());
+		assertEquals(120 * 1000, trace.get(2).getTime());
+		assertEquals("linux", trace.get(2).getLabel());
+
+		CapacitySimulator.Report report = CapacitySimulator.simulate(cloud(), trace, backend(Collections.<String, Integer>emptyMap()));
+
+		assertEquals(3, report.getBuilds());
+		assertEquals(0, report.getUnservable());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMalformedTrace() throws IOException {
+		CapacitySimulator.readTrace(new StringReader("0,linux\n"));
+	}
+
+	@Test
+	public void queuesBuildsBeyondBackendQuota() {
+		List<CapacitySimulator.Arrival> trace = Arrays.asList(
+				new CapacitySimulator.Arrival(0, "linux", 10 * MINUTE),
+				new CapacitySimulator.Arrival(0, "linux", 10 * MINUTE),
+				new CapacitySimulator.Arrival(0, "windows && !linux", 10 * MINUTE));
+
+		CapacitySimulator.Report report = CapacitySimulator.simulate(cloud(), trace, backend(Collections.singletonMap("db", 2)));
+
+		assertEquals(3, report.getBuilds());
+		assertEquals(1, report.getUnservable());
+		assertEquals(0, report.getFailedProvisionings());
+		assertEquals(3, report.getPeakSubSlaves());
+		assertEquals(2, report.getQueueWait().getCount());
+		// the first compound takes 1.5 minutes to come up, the second waits for the db quota until the first build is over
+		assertEquals(90 * 1000 + 10 * MINUTE + 90 * 1000, report.getQueueWait().getMax());
+		assertEquals(2 * 3 * (10 * MINUTE + 90 * 1000) / (double) TimeUnit.HOURS.toMillis(1), report.getNodeHours(), 1e-9);
+	}
+
+	private static CompoundCloud cloud() {
+		return new CompoundCloud("compound", "", "backend", "60", Arrays.asList(
+				new ConfigurationEntry("linux", Arrays.asList(new SlaveEntry("ROOT", "root", "1", ""), new SlaveEntry("db", "db", "2", "")))),
+				false, "");
+	}
+
+	private static CapacitySimulator.Backend backend(Map<String, Integer> quotas) {
+		return new CapacitySimulator.Backend(MINUTE, 30 * 1000, 0, quotas);
+	}
+}
@@ -0,0 +1,150 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.Slave;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import hudson.util.StreamTaskListener;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * @author pupssman
+ */
+public class CompoundLauncherTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private Slave root;
+	private Slave db;
+	private Slave late;
+
+	@Before
+	public void setUp() throws Exception {
+		BlockedLauncher.released = new CountDownLatch(1);
+		BlockedLauncher.finished = new CountDownLatch(1);
+
+		root = j.createOnlineSlave();
+		db = j.createOnlineSlave();
+		late = createBlockedSlave("late");
+	}
+
+	@After
+	public void tearDown() {
+		BlockedLauncher.released.countDown();
+	}
+
+	@Test
+	public void attachesRootOnQuorum() throws Exception {
+		CompoundSlave compound = launch(1);
+		CompoundLauncher launcher = (CompoundLauncher) compound.getLauncher();
+
+		assertTrue(compound.toComputer().isOnline());
+		assertTrue(launcher.isLaunching(late));
+		assertEquals(compound.getNodeName(), SubSlaveReservation.getReservedBy(late.getNodeName()));
+
+		BlockedLauncher.released.countDown();
+
+		// the blocked launcher never connects
+		assertFalse(launcher.waitFor(late));
+		assertFalse(launcher.isLaunching(late));
+	}
+
+	@Test
+	public void doesNotAttachWithoutQuorum() throws Exception {
+		BlockedLauncher.released.countDown();
+
+		CompoundSlave compound = launch(2);
+
+		assertFalse(compound.toComputer().isOnline());
+	}
+
+	@Test
+	public void leavesLateSubSlavesFreeAfterDisconnect() throws Exception {
+		CompoundSlave compound = launch(1);
+		CompoundLauncher launcher = (CompoundLauncher) compound.getLauncher();
+
+		launcher.afterDisconnect((SlaveComputer) compound.toComputer(), StreamTaskListener.fromStdout());
+
+		assertFalse(launcher.isLaunching(late));
+		assertNull(SubSlaveReservation.getReservedBy(late.getNodeName()));
+
+		// the launch finishes only now, as the blocked launcher does not give up on interrupts
+		BlockedLauncher.released.countDown();
+		assertTrue(BlockedLauncher.finished.await(10, TimeUnit.SECONDS));
+
+		// the sub-slave must stay free, give the rest of the sub-slave launch a chance to reserve it wrongly
+		for (int i = 0; i < 20; i++) {
+			Thread.sleep(100);
+			assertNull(SubSlaveReservation.getReservedBy(late.getNodeName()));
+			assertTrue(late.toComputer().isAcceptingTasks());
+		}
+	}
+
+	/**
+	 * Launches a compound of online ROOT and db sub-slaves and the late db one
+	 *
+	 * @param dbQuorum
+	 * @return the compound after the launch has finished
+	 */
+	private CompoundSlave launch(int dbQuorum) throws Exception {
+		CompoundSlave compound = new CompoundSlave("compound", "", "", Arrays.asList(
+				new CompoundSlave.Entry(root.getNodeName(), "ROOT"),
+				new CompoundSlave.Entry(db.getNodeName(), "db"),
+				new CompoundSlave.Entry(late.getNodeName(), "db")));
+		compound.setQuorum("db", dbQuorum);
+		j.jenkins.addNode(compound);
+
+		compound.toComputer().connect(false).get(60, TimeUnit.SECONDS);
+
+		return compound;
+	}
+
+	private Slave createBlockedSlave(String name) throws Exception {
+		Slave slave = new DumbSlave(name, "", "/tmp/" + name, "1", Node.Mode.NORMAL, "", new BlockedLauncher(), RetentionStrategy.NOOP,
+				Collections.<NodeProperty<?>>emptyList());
+		j.jenkins.addNode(slave);
+		return slave;
+	}
+
+	/**
+	 * Waits until released and never connects, ignoring interrupts like launchers stuck in I/O do
+	 */
+	public static class BlockedLauncher extends ComputerLauncher {
+		static volatile CountDownLatch released;
+		static volatile CountDownLatch finished;
+
+		@Override
+		public void launch(SlaveComputer computer, TaskListener listener) {
+			try {
+				while (true) {
+					try {
+						released.await();
+						return;
+					} catch (InterruptedException e) {
+						// keep waiting
+					}
+				}
+			} finally {
+				finished.countDown();
+			}
+		}
+	}
+}
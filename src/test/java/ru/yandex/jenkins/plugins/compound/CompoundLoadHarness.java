@@ -0,0 +1,236 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Load test of {@link CompoundCloud} provisioning against a {@link CompoundCloud} backed by a {@link SimulatedCloud}, driven by {@link CompoundLoadTest}.
+ *
+ * Every request does what {@link hudson.slaves.NodeProvisioner} would do for a single queued build:
+ * provisions a compound for the label, adds it to Jenkins, waits for it to come online through {@link CompoundLauncher} and then terminates it.
+ *
+ * @author pupssman
+ */
+public class CompoundLoadHarness {
+	private static final Logger logger = Logger.getLogger(CompoundLoadHarness.class.getCanonicalName());
+
+	private CompoundLoadHarness() {
+		// utility
+	}
+
+	/**
+	 * Outcome of a single load test run
+	 *
+	 * @author pupssman
+	 */
+	public static class Report {
+		private final AtomicInteger online = new AtomicInteger();
+		private final AtomicInteger rejected = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private final LatencyHistogram queueToOnline = new LatencyHistogram();
+		private int requests;
+		private long millis;
+		private int peakThreads;
+		private int peakRemotingThreads;
+		private int leakedCompounds;
+		private int leakedSubSlaves;
+
+		public int getOnline() {
+			return online.get();
+		}
+
+		public int getRejected() {
+			return rejected.get();
+		}
+
+		public int getFailed() {
+			return failed.get();
+		}
+
+		public LatencyHistogram getQueueToOnline() {
+			return queueToOnline;
+		}
+
+		/**
+		 * @return compounds brought online per second
+		 */
+		public double getThroughput() {
+			return millis == 0 ? 0 : online.get() * 1000.0 / millis;
+		}
+
+		public int getPeakThreads() {
+			return peakThreads;
+		}
+
+		public int getPeakRemotingThreads() {
+			return peakRemotingThreads;
+		}
+
+		public int getLeakedCompounds() {
+			return leakedCompounds;
+		}
+
+		public int getLeakedSubSlaves() {
+			return leakedSubSlaves;
+		}
+
+		@Override
+		public String toString() {
+			return "Requests: " + requests + " in " + millis + " ms\n"
+					+ "Online: " + online + ", rejected: " + rejected + ", failed: " + failed + "\n"
+					+ String.format("Throughput: %.2f compounds/s\n", getThroughput())
+					+ "Queue to online: " + queueToOnline + "\n"
+					+ "Peak threads: " + peakThreads + ", peak remoting pool: " + peakRemotingThreads + "\n"
+					+ "Leaked compounds: " + leakedCompounds + ", leaked simulated sub-slaves: " + leakedSubSlaves;
+		}
+	}
+
+	/**
+	 * Runs the given number of provisioning requests, at most concurrency of them at once
+	 *
+	 * @param cloudName of the {@link CompoundCloud} to test
+	 * @param label to request
+	 * @param requests total number of requests
+	 * @param concurrency number of requests in flight
+	 * @param timeoutSeconds for the whole run
+	 * @return report of the run
+	 * @throws InterruptedException
+	 */
+	public static Report run(String cloudName, String label, int requests, int concurrency, long timeoutSeconds) throws InterruptedException {
+		Jenkins jenkins = Jenkins.getInstance();
+		Cloud cloud = jenkins.getCloud(cloudName);
+
+		if (!(cloud instanceof CompoundCloud)) {
+			throw new IllegalArgumentException("No compound cloud named " + cloudName);
+		}
+
+		final CompoundCloud compoundCloud = (CompoundCloud) cloud;
+		final Label requested = jenkins.getLabel(label);
+		final Report report = new Report();
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+
+		int compoundsBefore = countCompounds(compoundCloud);
+		int subSlavesBefore = countSimulated();
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		ExecutorService requesters = Executors.newFixedThreadPool(concurrency);
+		long started = System.currentTimeMillis();
+
+		for (int i = 0; i < requests; i++) {
+			requesters.submit(new Runnable() {
+				@Override
+				public void run() {
+					request(compoundCloud, requested, deadline, report);
+				}
+			});
+		}
+
+		requesters.shutdown();
+		if (!requesters.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+			logger.warning("Load test did not finish in " + timeoutSeconds + " seconds, interrupting");
+			requesters.shutdownNow();
+			requesters.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+		}
+
+		report.requests = requests;
+		report.millis = System.currentTimeMillis() - started;
+		report.peakThreads = threads.getPeakThreadCount();
+		if (Computer.threadPoolForRemoting instanceof ThreadPoolExecutor) {
+			report.peakRemotingThreads = ((ThreadPoolExecutor) Computer.threadPoolForRemoting).getLargestPoolSize();
+		}
+		report.leakedCompounds = countCompounds(compoundCloud) - compoundsBefore;
+		report.leakedSubSlaves = countSimulated() - subSlavesBefore;
+
+		return report;
+	}
+
+	private static void request(CompoundCloud cloud, Label label, long deadline, Report report) {
+		long started = System.currentTimeMillis();
+		Collection<PlannedNode> plannedNodes = cloud.provision(label, 1);
+
+		if (plannedNodes.isEmpty()) {
+			report.rejected.incrementAndGet();
+			return;
+		}
+
+		for (PlannedNode plannedNode: plannedNodes) {
+			Node node = null;
+
+			try {
+				node = plannedNode.future.get(remaining(deadline), TimeUnit.MILLISECONDS);
+				Jenkins.getInstance().addNode(node);
+
+				Computer computer = node.toComputer();
+				computer.connect(false).get(remaining(deadline), TimeUnit.MILLISECONDS);
+
+				if (computer.isOnline()) {
+					report.queueToOnline.record(System.currentTimeMillis() - started);
+					report.online.incrementAndGet();
+				} else {
+					report.failed.incrementAndGet();
+				}
+			} catch (Exception e) {
+				logger.log(Level.FINE, "Load test request failed", e);
+				report.failed.incrementAndGet();
+			} finally {
+				if (node instanceof AbstractCloudSlave) {
+					try {
+						((AbstractCloudSlave) node).terminate();
+					} catch (Exception e) {
+						logger.log(Level.WARNING, "Failed to terminate " + node.getNodeName(), e);
+					}
+				}
+			}
+		}
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+	private static int countCompounds(CompoundCloud cloud) {
+		int result = 0;
+
+		for (Node node: Jenkins.getInstance().getNodes()) {
+			if (node instanceof CompoundSlave && cloud == ((CompoundSlave) node).getCloud()) {
+				result++;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return number of nodes provisioned by all the {@link SimulatedCloud}s and still alive
+	 */
+	private static int countSimulated() {
+		int result = 0;
+
+		for (Cloud cloud: Jenkins.getInstance().clouds) {
+			if (cloud instanceof SimulatedCloud) {
+				result += ((SimulatedCloud) cloud).getAlive().size();
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,69 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import hudson.model.Descriptor;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeDescriptor;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Provisions compounds from a {@link SimulatedCloud} with {@link CompoundLoadHarness} and checks nothing is lost or leaked
+ *
+ * @author pupssman
+ */
+public class CompoundLoadTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void provisionsUnderLoad() throws Exception {
+		j.jenkins.clouds.add(new SimulatedCloud("simulated", "", "100", "50", "0", "2", "10"));
+		j.jenkins.clouds.add(new CompoundCloud("compound", "", "simulated", "60", Arrays.asList(
+				new ConfigurationEntry("integration", Arrays.asList(new SlaveEntry("ROOT", "root", "1", ""), new SlaveEntry("db", "db", "2", "")))),
+				false, ""));
+
+		CompoundLoadHarness.Report report = CompoundLoadHarness.run("compound", "integration", 20, 5, 120);
+
+		assertEquals(report.toString(), 20, report.getOnline());
+		assertEquals(report.toString(), 0, report.getLeakedCompounds());
+		assertEquals(report.toString(), 0, report.getLeakedSubSlaves());
+	}
+
+	@TestExtension
+	public static class SimulatedCloudDescriptor extends Descriptor<Cloud> {
+		public SimulatedCloudDescriptor() {
+			super(SimulatedCloud.class);
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Simulated cloud";
+		}
+	}
+
+	@TestExtension
+	public static class SimulatedSlaveDescriptor extends NodeDescriptor {
+		public SimulatedSlaveDescriptor() {
+			super(SimulatedSlave.class);
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Simulated slave";
+		}
+
+		@Override
+		public boolean isInstantiable() {
+			return false;
+		}
+	}
+}
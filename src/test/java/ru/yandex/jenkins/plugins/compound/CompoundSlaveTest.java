@@ -0,0 +1,131 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * @author pupssman
+ */
+public class CompoundSlaveTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	/**
+	 * Older versions stored full copies of the sub-slaves in the slaves field, they must become references on load
+	 */
+	@Test
+	public void migratesLegacySubSlaves() throws Exception {
+		Slave root = createSlave("root");
+		Slave db1 = createSlave("db-1");
+		Slave db3 = createSlave("db-3");
+		Slave db2 = createSlave("db-2");
+		// db-2 is gone since the compound was saved
+		j.jenkins.removeNode(db2);
+
+		Map<String, List<Slave>> legacy = new LinkedHashMap<String, List<Slave>>();
+		legacy.put("ROOT", Arrays.asList(root));
+		legacy.put("db", Arrays.asList(db1, db2, db3));
+
+		CompoundSlave compound = (CompoundSlave) Jenkins.XSTREAM2.fromXML(toLegacyXml(createCompound(root), legacy));
+
+		CompoundTopology topology = compound.getTopology();
+		assertSame(root, topology.getRoot());
+		assertEquals(Arrays.asList(db1, null, db3), topology.getPositions("db"));
+		assertEquals(Arrays.asList("db-2"), topology.getMissing());
+		assertEquals(Arrays.asList("db-1", "db-2", "db-3"), names(compound, "db"));
+
+		String saved = Jenkins.XSTREAM2.toXML(compound);
+		assertFalse(saved, saved.contains("<slaves"));
+		assertFalse(saved, saved.contains("<self"));
+		assertTrue(saved, saved.contains("<slaveNames"));
+	}
+
+	@Test
+	public void loadsCurrentFormatAsIs() throws Exception {
+		Slave root = createSlave("root");
+		CompoundSlave compound = createCompound(root);
+
+		CompoundSlave loaded = (CompoundSlave) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(compound));
+
+		assertSame(root, loaded.getTopology().getRoot());
+		assertEquals(Arrays.asList("root"), names(loaded, "ROOT"));
+	}
+
+	@Test
+	public void readingUnknownRoleDoesNotPersistIt() throws Exception {
+		CompoundSlave compound = createCompound(createSlave("root"));
+
+		assertEquals(0, compound.getQuorum("web"));
+		assertTrue(compound.getSlaves("web").isEmpty());
+
+		assertFalse(Jenkins.XSTREAM2.toXML(compound).contains("<string>web</string>"));
+	}
+
+	private CompoundSlave createCompound(Slave root) throws Exception {
+		return new CompoundSlave("compound", "", "", Arrays.asList(new CompoundSlave.Entry(root.getNodeName(), "ROOT")));
+	}
+
+	/**
+	 * @return XML of the compound with its sub-slaves stored the way older versions did
+	 */
+	private static String toLegacyXml(CompoundSlave compound, Map<String, List<Slave>> slaves) {
+		StringBuilder legacy = new StringBuilder("<slaves>");
+
+		for (Map.Entry<String, List<Slave>> entry: slaves.entrySet()) {
+			legacy.append("<entry><string>").append(entry.getKey()).append("</string><list>");
+			for (Slave slave: entry.getValue()) {
+				legacy.append(Jenkins.XSTREAM2.toXML(slave));
+			}
+			legacy.append("</list></entry>");
+		}
+
+		legacy.append("</slaves>");
+
+		Matcher matcher = Pattern.compile("<slaveNames>.*</slaveNames>", Pattern.DOTALL).matcher(Jenkins.XSTREAM2.toXML(compound));
+		assertTrue(matcher.find());
+
+		return matcher.replaceFirst(Matcher.quoteReplacement(legacy.toString()));
+	}
+
+	private static List<String> names(CompoundSlave compound, String role) {
+		List<String> result = new ArrayList<String>();
+
+		for (CompoundSlave.Entry entry: compound.getEntries()) {
+			if (entry.getRole().equals(role)) {
+				result.add(entry.getName());
+			}
+		}
+
+		return result;
+	}
+
+	private Slave createSlave(String name) throws Exception {
+		Slave slave = new DumbSlave(name, "", "/tmp/" + name, "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP,
+				Collections.<NodeProperty<?>>emptyList());
+		j.jenkins.addNode(slave);
+		return slave;
+	}
+}
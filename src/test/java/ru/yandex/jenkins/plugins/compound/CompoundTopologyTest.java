@@ -0,0 +1,116 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * @author pupssman
+ */
+public class CompoundTopologyTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private final CompoundTopology.Lookup lookup = new CompoundTopology.Lookup() {
+		@Override
+		public Node getNode(String name) {
+			return nodes.get(name);
+		}
+	};
+
+	private Slave root;
+	private Slave db1;
+	private Slave db3;
+
+	@Before
+	public void setUp() throws Exception {
+		root = createSlave("root");
+		db1 = createSlave("db-1");
+		db3 = createSlave("db-3");
+	}
+
+	@Test
+	public void resolvesAllSubSlaves() {
+		CompoundTopology topology = CompoundTopology.resolve(names("root", "db-1", "db-3"), "ROOT", lookup);
+
+		assertSame(root, topology.getRoot());
+		assertEquals(Arrays.asList(db1, db3), topology.get("db"));
+		assertEquals(Arrays.asList(root, db1, db3), topology.getAll());
+		assertEquals("db", topology.getRole("db-3"));
+		assertEquals(Arrays.asList("ROOT", "db"), Arrays.asList(topology.getRoles().toArray()));
+		assertTrue(topology.getMissing().isEmpty());
+	}
+
+	@Test
+	public void keepsPositionsOfMissingSubSlaves() {
+		CompoundTopology topology = CompoundTopology.resolve(names("root", "db-1", "db-2", "db-3"), "ROOT", lookup);
+
+		assertEquals(Arrays.asList(db1, db3), topology.get("db"));
+		assertEquals(Arrays.asList(db1, null, db3), topology.getPositions("db"));
+		assertSame(db3, topology.get("db", 2));
+		assertNull(topology.get("db", 1));
+		assertNull(topology.get("db", 3));
+		assertEquals(Arrays.asList("db-2"), topology.getMissing());
+		assertEquals(Arrays.asList("db-1", "db-3"), topology.getNames().get("db"));
+		assertNull(topology.getRole("db-2"));
+	}
+
+	@Test
+	public void hasNoRootWhenItIsMissing() {
+		CompoundTopology topology = CompoundTopology.resolve(names("gone", "db-1"), "ROOT", lookup);
+
+		assertNull(topology.getRoot());
+		assertEquals(Arrays.asList("gone"), topology.getMissing());
+	}
+
+	@Test
+	public void unknownRoleIsEmpty() {
+		CompoundTopology topology = CompoundTopology.resolve(names("root"), "ROOT", lookup);
+
+		assertTrue(topology.get("web").isEmpty());
+		assertTrue(topology.getPositions("web").isEmpty());
+		assertNull(topology.get("web", 0));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void isImmutable() {
+		CompoundTopology.resolve(names("root", "db-1"), "ROOT", lookup).get("db").add(db3);
+	}
+
+	/**
+	 * @return names with the first one being root and the rest db
+	 */
+	private static Map<String, List<String>> names(String root, String... db) {
+		Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		result.put("ROOT", Arrays.asList(root));
+		result.put("db", Arrays.asList(db));
+		return result;
+	}
+
+	private Slave createSlave(String name) throws Exception {
+		Slave slave = new DumbSlave(name, "", "/tmp/" + name, "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP,
+				Collections.<NodeProperty<?>>emptyList());
+		nodes.put(name, slave);
+		return slave;
+	}
+}
@@ -0,0 +1,122 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import hudson.FilePath;
+import hudson.util.DirScanner;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author pupssman
+ */
+public class DirectTransferTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void sendsFilesToAllTargets() throws Exception {
+		FilePath source = createSource();
+		FilePath first = new FilePath(tmp.newFolder("first"));
+		FilePath second = new FilePath(tmp.newFolder("second"));
+
+		DirectTransfer.Result result = DirectTransfer.transfer(source, new DirScanner.Glob("**/*.txt", null), Arrays.asList(first, second),
+				new StreamTaskListener(System.out));
+
+		assertEquals(2, result.getFiles());
+		assertEquals(2, result.getTargets());
+
+		for (FilePath target: Arrays.asList(first, second)) {
+			assertEquals("hello", target.child("a.txt").readToString());
+			assertEquals("world", target.child("dir/b.txt").readToString());
+			assertFalse(target.child("c.bin").exists());
+		}
+	}
+
+	/**
+	 * A peer without the secret connects first, it must get nothing and the targets must still get everything
+	 */
+	@Test
+	public void dropsPeersWithoutSecret() throws Exception {
+		FilePath source = createSource();
+		FilePath target = new FilePath(tmp.newFolder("target"));
+		Intruder intruder = new Intruder();
+
+		DirectTransfer.transfer(source, new DirScanner.Glob("**/*.txt", null), Arrays.asList(target), new StreamTaskListener(intruder));
+
+		assertEquals("hello", target.child("a.txt").readToString());
+		assertNotNull("Intruder did not connect", intruder.socket);
+		assertEquals("Intruder got some data", 0, intruder.received());
+	}
+
+	private FilePath createSource() throws IOException, InterruptedException {
+		FilePath source = new FilePath(tmp.newFolder("source"));
+
+		source.child("a.txt").write("hello", "UTF-8");
+		source.child("dir/b.txt").write("world", "UTF-8");
+		source.child("c.bin").write("skipped", "UTF-8");
+
+		return source;
+	}
+
+	/**
+	 * Log of the transfer, connects to the announced endpoint with a wrong secret before any target does
+	 */
+	private static final class Intruder extends OutputStream {
+		private static final Pattern ENDPOINT = Pattern.compile(" at ([0-9.]+):([0-9]+) to ");
+
+		private final StringBuilder line = new StringBuilder();
+		private Socket socket;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (b != '\n') {
+				line.append((char) b);
+				return;
+			}
+
+			Matcher matcher = ENDPOINT.matcher(line);
+
+			if (socket == null && matcher.find()) {
+				socket = new Socket(matcher.group(1), Integer.parseInt(matcher.group(2)));
+				OutputStream out = socket.getOutputStream();
+				out.write(new byte[32]);
+				out.flush();
+			}
+
+			line.setLength(0);
+		}
+
+		/**
+		 * @return how many bytes the source sent to the intruder before closing the connection
+		 */
+		int received() throws IOException {
+			InputStream in = socket.getInputStream();
+			int count = 0;
+
+			try {
+				while (in.read() != -1) {
+					count++;
+				}
+			} catch (IOException e) {
+				// reset by the source
+			} finally {
+				socket.close();
+			}
+
+			return count;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Label;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Choice of configurations and compound labels by {@link CompoundCloud} for requested label expressions
+ *
+ * @author pupssman
+ */
+public class LabelResolutionTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void satisfiesBothExpressions() throws Exception {
+		assertEquals(set("linux"), labels("linux && !small", "linux"));
+		assertEquals(set("linux", "perf"), labels("linux && perf", "linux && perf"));
+		assertNull(labels("linux && !small", "small"));
+	}
+
+	/**
+	 * Labels the configuration does not refer to can't be given to the compound to satisfy the request
+	 */
+	@Test
+	public void usesOnlyConfiguredLabels() throws Exception {
+		assertNull(labels("linux", "windows"));
+		assertNull(labels("linux", "linux && perf"));
+		assertNull(labels("linux && !small", "!linux"));
+	}
+
+	@Test
+	public void takesAllConfiguredLabelsWithoutRequest() throws Exception {
+		assertEquals(set("linux", "mac"), set(CompoundCloud.getSatisfyingLabels(Label.parseExpression("linux || mac"), null).split(" ")));
+	}
+
+	/**
+	 * Both {r} and {p, q} satisfy the expression, the larger one must win whatever the order of the atoms is
+	 */
+	@Test
+	public void prefersLargerLabelSets() throws Exception {
+		assertEquals(set("p", "q"), labels("((p && q) || r) && !(p && r) && !(q && r)", "p || r"));
+	}
+
+	@Test
+	public void choosesTheTightestConfiguration() throws Exception {
+		ConfigurationEntry generic = entry("linux");
+		ConfigurationEntry perf = entry("linux && perf");
+		CompoundCloud cloud = cloud(generic, perf);
+
+		assertSame(perf, cloud.getConfigurationFor(Label.parseExpression("linux && perf")));
+		assertSame(generic, cloud.getConfigurationFor(Label.parseExpression("linux && !perf")));
+		// both fit, the one giving fewer labels is tighter
+		assertSame(generic, cloud.getConfigurationFor(Label.parseExpression("linux")));
+		assertSame(generic, cloud(perf, generic).getConfigurationFor(Label.parseExpression("linux")));
+		assertNull(cloud.getConfigurationFor(Label.parseExpression("windows")));
+		assertNull(cloud.getConfigurationFor(Label.parseExpression("!linux")));
+		assertNull(cloud.getConfigurationFor(null));
+	}
+
+	@Test
+	public void cachesResolutionsIncludingMisses() throws Exception {
+		CompoundCloud cloud = cloud(entry("linux"));
+
+		assertTrue(cloud.canProvision(Label.parseExpression("linux")));
+		assertTrue(cloud.canProvision(Label.parseExpression("linux")));
+		assertFalse(cloud.canProvision(Label.parseExpression("!linux")));
+		assertFalse(cloud.canProvision(Label.parseExpression("!linux")));
+	}
+
+	private static Set<String> labels(String configured, String requested) throws Exception {
+		String labels = CompoundCloud.getSatisfyingLabels(Label.parseExpression(configured), Label.parseExpression(requested));
+
+		return labels == null ? null : set(labels.split(" "));
+	}
+
+	private static Set<String> set(String... labels) {
+		return new HashSet<String>(Arrays.asList(labels));
+	}
+
+	private static ConfigurationEntry entry(String labelExpression) {
+		return new ConfigurationEntry(labelExpression, Arrays.asList(new SlaveEntry("ROOT", "root", "1", "")));
+	}
+
+	private static CompoundCloud cloud(ConfigurationEntry... entries) {
+		return new CompoundCloud("compound", "", "backend", "60", Arrays.asList(entries), false, "");
+	}
+}
@@ -0,0 +1,75 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author pupssman
+ */
+public class LatencyHistogramTest {
+	@Test
+	public void emptyHistogramReportsZeros() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getMean());
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (int i = 0; i < 8; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(3, histogram.getPercentile(50));
+		assertEquals(7, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void percentilesAreWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500, histogram.getMean());
+		assertEquals(1000, histogram.getMax());
+
+		assertWithin(500, histogram.getPercentile(50));
+		assertWithin(950, histogram.getPercentile(95));
+		assertEquals(1000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void percentileNeverExceedsMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+
+		assertEquals(1000, histogram.getPercentile(50));
+	}
+
+	@Test
+	public void negativeDurationsCountAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(100));
+	}
+
+	/**
+	 * Percentiles are upper bounds of buckets, which are 1/8 of a power of two wide
+	 */
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but got " + actual, actual >= expected && actual <= expected + expected / 8 + 1);
+	}
+}
@@ -0,0 +1,116 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * @author pupssman
+ */
+public class ProvisioningJournalTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private File file;
+	private ProvisioningJournal journal;
+
+	@Before
+	public void setUp() {
+		file = new File(j.jenkins.getRootDir(), "test.journal");
+		journal = new ProvisioningJournal(file);
+	}
+
+	@Test
+	public void replaysOnlyUnfinishedProvisioning() throws Exception {
+		journal.intent("compound-1", "linux");
+		journal.intent("compound-2", "linux && perf");
+		journal.intent("compound-3", "linux");
+		journal.done("compound-1");
+		journal.abort("compound-3");
+
+		List<ProvisioningJournal.Unfinished> unfinished = journal.replay();
+
+		assertEquals(1, unfinished.size());
+		assertEquals("compound-2", unfinished.get(0).getCompoundName());
+		assertEquals("linux && perf", unfinished.get(0).getConfigurationLabel());
+		assertEquals(Collections.singleton("compound-2"), journal.getInFlight());
+	}
+
+	@Test
+	public void replaysJournaledNodes() throws Exception {
+		journal.intent("compound-1", "linux");
+		journal.node("compound-1", "db", createSlave("db-1"));
+		journal.node("compound-1", "db", createSlave("db-2"));
+		journal.node("compound-1", "ROOT", createSlave("root-1"));
+
+		List<ProvisioningJournal.Unfinished> unfinished = journal.replay();
+
+		assertEquals(1, unfinished.size());
+		assertEquals(2, unfinished.get(0).getNodes().get("db").size());
+		assertEquals("db-2", unfinished.get(0).getNodes().get("db").get(1).getNodeName());
+		assertEquals("root-1", unfinished.get(0).getNodes().get("ROOT").get(0).getNodeName());
+		assertEquals(3, unfinished.get(0).getAllNodes().size());
+	}
+
+	@Test
+	public void skipsTornLines() throws Exception {
+		journal.intent("compound-1", "linux");
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write("NODE\tcompound-1\tdb".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		List<ProvisioningJournal.Unfinished> unfinished = journal.replay();
+
+		assertEquals(1, unfinished.size());
+		assertTrue(unfinished.get(0).getNodes().isEmpty());
+	}
+
+	@Test
+	public void truncatesWhenNothingIsInFlight() throws Exception {
+		journal.intent("compound-1", "linux");
+		assertTrue(file.exists());
+
+		journal.done("compound-1");
+
+		assertFalse(file.exists());
+		assertTrue(journal.replay().isEmpty());
+	}
+
+	@Test
+	public void doneOfUnknownCompoundIsIgnored() throws Exception {
+		journal.intent("compound-1", "linux");
+		journal.done("compound-2");
+
+		assertEquals(1, journal.replay().size());
+	}
+
+	@Test
+	public void journalsAreSharedByFile() {
+		assertSame(ProvisioningJournal.of(file), ProvisioningJournal.of(new File(file.getPath())));
+	}
+
+	private static Node createSlave(String name) throws Exception {
+		return new DumbSlave(name, "", "/tmp/" + name, "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP,
+				Collections.<NodeProperty<?>>emptyList());
+	}
+}
@@ -0,0 +1,139 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.AbstractCloudImpl;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process fake cloud to be used as a backend of {@link CompoundCloud} in tests, see {@link CompoundLoadTest}.
+ *
+ * Provisions {@link SimulatedSlave}s for any label with configurable latency, failure rate and batching.
+ * Simulated sub-slaves are connected with in-memory channels, so the remote side of them runs inside Jenkins itself.
+ *
+ * @author pupssman
+ */
+public class SimulatedCloud extends AbstractCloudImpl {
+	private final long latency;
+	private final long jitter;
+	private final double failureRate;
+	private final int batchSize;
+	private final long launchLatency;
+
+	private transient volatile Random random;
+	private transient volatile Set<String> alive;
+	private static final AtomicLong nodesProvisioned = new AtomicLong();
+	private static final AtomicInteger failures = new AtomicInteger();
+
+	/**
+	 * @param latency of provisioning a single node, milliseconds
+	 * @param jitter random addition to latency, milliseconds
+	 * @param failureRate from 0 to 1
+	 * @param batchSize max number of nodes planned by a single provision call
+	 * @param launchLatency of connecting a single node, milliseconds
+	 */
+	public SimulatedCloud(String name, String instanceCapStr, String latency, String jitter, String failureRate, String batchSize, String launchLatency) {
+		super(name, instanceCapStr);
+		this.latency = Long.parseLong(latency);
+		this.jitter = Long.parseLong(jitter);
+		this.failureRate = Double.parseDouble(failureRate);
+		this.batchSize = Integer.parseInt(batchSize);
+		this.launchLatency = Long.parseLong(launchLatency);
+	}
+
+	@Override
+	public Collection<PlannedNode> provision(final Label label, int excessWorkload) {
+		List<PlannedNode> result = new ArrayList<PlannedNode>();
+
+		for (int i = 0; i < Math.min(excessWorkload, batchSize); i++) {
+			final String name = "simulated-" + nodesProvisioned.incrementAndGet();
+
+			Future<Node> future = Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+				@Override
+				public Node call() throws Exception {
+					Thread.sleep(latency + (jitter > 0 ? (long) (getRandom().nextDouble() * jitter) : 0));
+
+					if (getRandom().nextDouble() < failureRate) {
+						failures.incrementAndGet();
+						throw new CompoundingException("Simulated failure of " + name);
+					}
+
+					SimulatedSlave slave = new SimulatedSlave(name, label == null ? "" : label.getExpression(), SimulatedCloud.this.name, launchLatency);
+					getAlive().add(name);
+					return slave;
+				}
+			});
+
+			result.add(new PlannedNode(name, future, 1));
+		}
+
+		return result;
+	}
+
+	@Override
+	public boolean canProvision(Label label) {
+		return true;
+	}
+
+	void terminated(String nodeName) {
+		getAlive().remove(nodeName);
+	}
+
+	/**
+	 * @return names of the nodes provisioned by this cloud and not terminated yet
+	 */
+	public Set<String> getAlive() {
+		if (alive == null) {
+			synchronized (this) {
+				if (alive == null) {
+					alive = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				}
+			}
+		}
+		return alive;
+	}
+
+	private Random getRandom() {
+		if (random == null) {
+			random = new Random();
+		}
+		return random;
+	}
+
+	public static int getFailures() {
+		return failures.get();
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public long getJitter() {
+		return jitter;
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getLaunchLatency() {
+		return launchLatency;
+	}
+}
@@ -0,0 +1,115 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Computer;
+import hudson.model.Descriptor.FormException;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Slave provisioned by {@link SimulatedCloud}
+ *
+ * @author pupssman
+ */
+public class SimulatedSlave extends AbstractCloudSlave {
+	private static final long serialVersionUID = 1L;
+
+	private final String cloudName;
+
+	public SimulatedSlave(String name, String labelString, String cloudName, long launchLatency) throws FormException, IOException {
+		super(name, "Simulated slave", new File(new File(System.getProperty("java.io.tmpdir"), "simulated-cloud"), name).getAbsolutePath(),
+				"1", Node.Mode.EXCLUSIVE, labelString, new SimulatedLauncher(launchLatency), RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+		this.cloudName = cloudName;
+	}
+
+	@Override
+	public AbstractCloudComputer<SimulatedSlave> createComputer() {
+		return new AbstractCloudComputer<SimulatedSlave>(this);
+	}
+
+	@Override
+	protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+		((SimulatedLauncher) getLauncher()).close();
+
+		Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
+		if (cloud instanceof SimulatedCloud) {
+			((SimulatedCloud) cloud).terminated(getNodeName());
+		}
+	}
+
+	/**
+	 * Connects slave over in-memory pipes, running the remote side of the channel inside Jenkins
+	 *
+	 * @author pupssman
+	 */
+	public static class SimulatedLauncher extends ComputerLauncher {
+		private final long launchLatency;
+		private transient volatile Channel remote;
+
+		public SimulatedLauncher(long launchLatency) {
+			this.launchLatency = launchLatency;
+		}
+
+		@Override
+		public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+			Thread.sleep(launchLatency);
+
+			final FastPipedInputStream toRemoteIn = new FastPipedInputStream();
+			FastPipedOutputStream toRemoteOut = new FastPipedOutputStream(toRemoteIn);
+			FastPipedInputStream toLocalIn = new FastPipedInputStream();
+			final FastPipedOutputStream toLocalOut = new FastPipedOutputStream(toLocalIn);
+
+			final String name = computer.getName();
+
+			// both ends of the channel handshake in constructor, so they are created concurrently
+			Future<Channel> remoteChannel = Computer.threadPoolForRemoting.submit(new Callable<Channel>() {
+				@Override
+				public Channel call() throws Exception {
+					return new Channel(name + " (simulated remote)", Computer.threadPoolForRemoting, toRemoteIn, toLocalOut);
+				}
+			});
+
+			computer.setChannel(toLocalIn, toRemoteOut, listener, null);
+
+			try {
+				remote = remoteChannel.get();
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to start simulated remote channel: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+
+		void close() throws IOException {
+			if (remote != null) {
+				remote.close();
+				remote = null;
+			}
+		}
+
+		@Override
+		public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
+			try {
+				close();
+			} catch (IOException e) {
+				e.printStackTrace(listener.error("Failed to close simulated remote channel"));
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import static org.junit.Assert.assertEquals;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * @author pupssman
+ */
+public class SubSlaveLoadTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Test
+	public void countsStepsInFlight() {
+		assertEquals(0, SubSlaveLoad.getInFlight("counted"));
+
+		SubSlaveLoad.begin("counted");
+		SubSlaveLoad.begin("counted");
+		assertEquals(2, SubSlaveLoad.getInFlight("counted"));
+
+		SubSlaveLoad.end("counted");
+		SubSlaveLoad.end("counted");
+		assertEquals(0, SubSlaveLoad.getInFlight("counted"));
+
+		// unbalanced end does not make the load negative
+		SubSlaveLoad.end("counted");
+		assertEquals(0, SubSlaveLoad.getInFlight("counted"));
+	}
+
+	@Test
+	public void sortsLeastLoadedFirstAndOfflineLast() throws Exception {
+		Slave offline = createOfflineSlave("offline");
+		Slave busy = j.createOnlineSlave();
+		Slave loaded = j.createOnlineSlave();
+		Slave free = j.createOnlineSlave();
+
+		// far above any difference of system load between the calls
+		begin(busy, 10);
+		begin(loaded, 5);
+
+		try {
+			List<Slave> sorted = SubSlaveLoad.sortByLoad(Arrays.asList(offline, busy, loaded, free));
+
+			assertEquals(Arrays.asList(free, loaded, busy, offline), sorted);
+		} finally {
+			end(busy, 10);
+			end(loaded, 5);
+		}
+	}
+
+	@Test
+	public void keepsOrderOfEquallyLoaded() throws Exception {
+		Slave first = createOfflineSlave("first");
+		Slave second = createOfflineSlave("second");
+
+		assertEquals(Arrays.asList(first, second), SubSlaveLoad.sortByLoad(Arrays.asList(first, second)));
+		assertEquals(Arrays.asList(second, first), SubSlaveLoad.sortByLoad(Arrays.asList(second, first)));
+	}
+
+	/**
+	 * @return slave that never connects, as nobody launches it over JNLP
+	 */
+	private Slave createOfflineSlave(String name) throws Exception {
+		Slave slave = new DumbSlave(name, "", "/tmp/" + name, "1", Node.Mode.NORMAL, "", new JNLPLauncher(), RetentionStrategy.NOOP,
+				Collections.<NodeProperty<?>>emptyList());
+		j.jenkins.addNode(slave);
+		return slave;
+	}
+
+	private static void begin(Slave slave, int steps) {
+		for (int i = 0; i < steps; i++) {
+			SubSlaveLoad.begin(slave.getNodeName());
+		}
+	}
+
+	private static void end(Slave slave, int steps) {
+		for (int i = 0; i < steps; i++) {
+			SubSlaveLoad.end(slave.getNodeName());
+		}
+	}
+}